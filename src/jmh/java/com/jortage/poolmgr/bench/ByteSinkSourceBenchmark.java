@@ -0,0 +1,69 @@
+package com.jortage.poolmgr.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.jortage.poolmgr.util.ByteSinkSource;
+import com.jortage.poolmgr.util.FileByteSinkSource;
+import com.jortage.poolmgr.util.MemoryByteSinkSource;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Spooling a download to a {@link ByteSinkSource} and reading it back out, as Rivet does before
+ * handing it to the backend. Rivet picks memory at 8K and under; this is here to check that
+ * cutoff.
+ */
+@State(Scope.Benchmark)
+public class ByteSinkSourceBenchmark {
+
+	@Param({"memory", "file"})
+	public String kind;
+
+	@Param({"8192", "262144", "4194304"})
+	public int size;
+
+	private byte[] data;
+	private File file;
+
+	@Setup
+	public void setup() throws IOException {
+		data = Samples.random(size);
+		file = File.createTempFile("jortage-bench-", ".dat");
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public long writeThenRead() throws IOException {
+		ByteSinkSource bss;
+		switch (kind) {
+			case "memory": bss = new MemoryByteSinkSource(); break;
+			case "file": bss = new FileByteSinkSource(file, false); break;
+			default: throw new IllegalArgumentException(kind);
+		}
+		try {
+			try (OutputStream out = bss.getSink().openStream()) {
+				out.write(data);
+			}
+			try (InputStream in = bss.getSource().openStream()) {
+				return ByteStreams.exhaust(in);
+			}
+		} finally {
+			bss.close();
+		}
+	}
+
+}
@@ -0,0 +1,54 @@
+package com.jortage.poolmgr.bench;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.ByteStreams;
+
+/**
+ * SHA-512 through {@link HashingOutputStream}, fed the way our copy loops feed it. One op is one
+ * file of {@code size} bytes.
+ */
+@State(Scope.Benchmark)
+public class HashBenchmark {
+
+	@Param({"4096", "1048576", "16777216"})
+	public int size;
+
+	// ByteStreams.copy and InputStream.transferTo both use 8K buffers
+	@Param({"8192", "65536"})
+	public int writeSize;
+
+	private byte[] data;
+
+	@Setup
+	public void setup() {
+		data = Samples.random(size);
+	}
+
+	@Benchmark
+	public HashCode hashingOutputStream() throws IOException {
+		HashingOutputStream hos = new HashingOutputStream(Hashing.sha512(), ByteStreams.nullOutputStream());
+		for (int ofs = 0; ofs < data.length; ofs += writeSize) {
+			hos.write(data, ofs, Math.min(writeSize, data.length-ofs));
+		}
+		return hos.hash();
+	}
+
+	/**
+	 * The floor: the same digest without the stream wrapper.
+	 */
+	@Benchmark
+	public HashCode hashBytes() {
+		return Hashing.sha512().hashBytes(data);
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.jortage.poolmgr.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.jortage.poolmgr.Poolmgr;
+import com.jortage.poolmgr.Queries;
+import com.jortage.poolmgr.http.RedirHandler;
+
+import com.google.common.base.Strings;
+import com.google.common.hash.HashCode;
+
+/**
+ * The per-request string work on the redirect and mapping paths. These run on every GET the CDN
+ * misses, so allocation matters as much as time here.
+ */
+@State(Scope.Benchmark)
+public class PathBenchmark {
+
+	private static final String PUBLIC_HOST = "https://pool.jortage.com";
+
+	private HashCode hash;
+	private String hashString;
+	private String shortName;
+	private String longName;
+	private String awkwardName;
+
+	@Setup
+	public void setup() {
+		hash = Samples.hash(1);
+		hashString = hash.toString();
+		shortName = "media_attachments/files/110/123/456/789/012/345/original/0123456789abcdef.png";
+		longName = "cache/preview_cards/images/"+Strings.repeat("0123456789", 30)+".jpeg";
+		// extension the CDN won't take, so it gets whittled down
+		awkwardName = "media_attachments/files/110/123/original/archive.tar.gz.this-is-not-an-ext";
+	}
+
+	@Benchmark
+	public String toSFNShort() {
+		return Queries.toSFN(shortName);
+	}
+
+	@Benchmark
+	public String toSFNLong() {
+		return Queries.toSFN(longName);
+	}
+
+	@Benchmark
+	public String hashToPath() {
+		return Poolmgr.hashToPath(hashString);
+	}
+
+	@Benchmark
+	public String redirectUrlOld() {
+		return RedirHandler.buildRedirectUrl(PUBLIC_HOST, false, shortName, hash);
+	}
+
+	@Benchmark
+	public String redirectUrlNew() {
+		return RedirHandler.buildRedirectUrl(PUBLIC_HOST, true, shortName, hash);
+	}
+
+	@Benchmark
+	public String redirectUrlNewAwkwardExtension() {
+		return RedirHandler.buildRedirectUrl(PUBLIC_HOST, true, awkwardName, hash);
+	}
+
+}
@@ -0,0 +1,53 @@
+package com.jortage.poolmgr.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.jortage.poolmgr.normalizer.Normalizer;
+import com.jortage.poolmgr.normalizer.PngNormalizer;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * {@link PngNormalizer} on its own, with the input stream reused between ops, so that
+ * gc.alloc.rate.norm shows what the normalizer itself allocates. It should be ~0.
+ */
+@State(Scope.Thread)
+public class PngNormalizerBenchmark {
+
+	// emoji-sized and avatar-sized
+	@Param({"4096", "262144"})
+	public int size;
+
+	@Param({"false", "true"})
+	public boolean corrupt;
+
+	private final Normalizer normalizer = new PngNormalizer();
+	private final OutputStream out = ByteStreams.nullOutputStream();
+	private byte[] header;
+	private ByteArrayInputStream in;
+
+	@Setup
+	public void setup() {
+		byte[] data = corrupt ? Samples.corruptPng(20, size) : Samples.png(20, size);
+		header = new byte[Normalizer.HEADER_LENGTH];
+		System.arraycopy(data, 0, header, 0, header.length);
+		// reset() goes back to the offset given here
+		in = new ByteArrayInputStream(data, header.length, data.length-header.length);
+	}
+
+	@Benchmark
+	public OutputStream normalize() throws IOException {
+		in.reset();
+		normalizer.normalize(header, header.length, in, out);
+		return out;
+	}
+
+}
@@ -0,0 +1,80 @@
+package com.jortage.poolmgr.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.jortage.poolmgr.FileReprocessor;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Throughput of {@link FileReprocessor} on the kinds of input it sees. One op is one file.
+ */
+@State(Scope.Benchmark)
+public class ReprocessBenchmark {
+
+	/**
+	 * <ul>
+	 * <li>random - not a PNG, so it's just a copy after sniffing the magic</li>
+	 * <li>png - a PNG with lots of tIME and tEXt chunks to strip or rewrite</li>
+	 * <li>corrupt_png - the same, but with bad CRCs and malformed tEXt</li>
+	 * <li>jpeg - a JPEG with EXIF and XMP dates to blank</li>
+	 * <li>webp - a WebP with EXIF and XMP chunks to blank</li>
+	 * </ul>
+	 */
+	@Param({"random", "png", "corrupt_png", "jpeg", "webp"})
+	public String kind;
+
+	@Param({"65536", "4194304"})
+	public int size;
+
+	private byte[] data;
+
+	@Setup
+	public void setup() {
+		switch (kind) {
+			case "random": data = Samples.random(size); break;
+			case "png": data = Samples.png(200, size); break;
+			case "corrupt_png": data = Samples.corruptPng(200, size); break;
+			case "jpeg": data = Samples.jpeg("2024:01:02 03:04:05", size); break;
+			case "webp": data = Samples.webp("2024:01:02 03:04:05", size); break;
+			default: throw new IllegalArgumentException(kind);
+		}
+	}
+
+	@Benchmark
+	public long reprocess() throws IOException {
+		CountingOutputStream out = new CountingOutputStream(ByteStreams.nullOutputStream());
+		FileReprocessor.reprocess(new ByteArrayInputStream(data), out);
+		return out.getCount();
+	}
+
+	/**
+	 * What uploads actually do.
+	 */
+	@Benchmark
+	public HashCode reprocessAndHash() throws IOException {
+		return FileReprocessor.reprocessAndHash(new ByteArrayInputStream(data), ByteStreams.nullOutputStream());
+	}
+
+	/**
+	 * The old way, reprocessing into a HashingOutputStream, for comparison.
+	 */
+	@Benchmark
+	public HashCode reprocessThroughHashingStream() throws IOException {
+		HashingOutputStream hos = new HashingOutputStream(Hashing.sha512(), ByteStreams.nullOutputStream());
+		FileReprocessor.reprocess(new ByteArrayInputStream(data), hos);
+		return hos.hash();
+	}
+
+}
@@ -0,0 +1,190 @@
+package com.jortage.poolmgr.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import com.jortage.poolmgr.util.MetadataDates;
+import com.jortage.poolmgr.util.PngSurgeon;
+import com.jortage.poolmgr.util.PngSurgeon.Chunk;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashCode;
+import com.google.common.primitives.Ints;
+
+/**
+ * Deterministic inputs for the benchmarks, so runs are comparable between machines and commits.
+ */
+final class Samples {
+
+	static byte[] random(int size) {
+		byte[] bys = new byte[size];
+		new Random(0x4A6F7274L).nextBytes(bys);
+		return bys;
+	}
+
+	/**
+	 * A PNG with {@code metadataChunks} each of tIME and tEXt (a mix of date keys that get
+	 * stripped and keys that get kept) ahead of {@code idatSize} bytes of image data.
+	 */
+	static byte[] png(int metadataChunks, int idatSize) {
+		return png(metadataChunks, idatSize, false);
+	}
+
+	/**
+	 * Like {@link #png(int, int)}, but every tEXt chunk has a bad CRC and half of them are missing
+	 * their NUL separator, which is what we actually see from broken encoders.
+	 */
+	static byte[] corruptPng(int metadataChunks, int idatSize) {
+		return png(metadataChunks, idatSize, true);
+	}
+
+	private static byte[] png(int metadataChunks, int idatSize, boolean corrupt) {
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(baos);
+			out.writeLong(PngSurgeon.PNG_MAGIC);
+			// 256x256 8-bit RGBA
+			writeChunk(out, Chunk.IHDR, new byte[] {0, 0, 1, 0, 0, 0, 1, 0, 8, 6, 0, 0, 0}, false);
+			String[] keys = {"date:create", "date:modify", "Comment", "date:timestamp", "Software"};
+			for (int i = 0; i < metadataChunks; i++) {
+				writeChunk(out, Chunk.tIME, new byte[] {0x07, (byte)0xE8, 1, 2, 3, 4, (byte)(i%60)}, false);
+				String key = keys[i%keys.length];
+				String text = key+(corrupt && i%2 == 0 ? "" : "\0")+"2024-01-02T03:04:"+(i%60)+"+00:00 entry "+i;
+				writeChunk(out, Chunk.tEXt, text.getBytes(Charsets.ISO_8859_1), corrupt);
+			}
+			writeChunk(out, Chunk.IDAT, random(idatSize), false);
+			writeChunk(out, Chunk.IEND, new byte[0], false);
+			return baos.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void writeChunk(DataOutputStream out, int type, byte[] data, boolean badCrc) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(Ints.toByteArray(type));
+		crc.update(data);
+		out.writeInt(data.length);
+		out.writeInt(type);
+		out.write(data);
+		out.writeInt((int)crc.getValue() ^ (badCrc ? 0xDEADBEEF : 0));
+	}
+
+	/**
+	 * A JPEG with EXIF and XMP segments carrying save dates, ahead of {@code scanSize} bytes of
+	 * "image data".
+	 */
+	static byte[] jpeg(String saveDate, int scanSize) {
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(baos);
+			out.writeShort(0xFFD8);
+			writeSegment(out, 0xE0, "JFIF\0\1\1\0\0\1\0\1\0\0".getBytes(Charsets.ISO_8859_1));
+			writeSegment(out, 0xE1, concat(MetadataDates.EXIF_HEADER, exif(saveDate)));
+			writeSegment(out, 0xE1, concat(MetadataDates.XMP_HEADER, xmp(saveDate)));
+			// a quantization table, for something to copy
+			writeSegment(out, 0xDB, Arrays.copyOf(random(65), 65));
+			writeSegment(out, 0xDA, new byte[] {1, 1, 0, 0, 0x3F, 0});
+			out.write(random(scanSize));
+			out.writeShort(0xFFD9);
+			return baos.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * A WebP with EXIF and XMP chunks carrying save dates, after {@code imageSize} bytes of
+	 * "image data".
+	 */
+	static byte[] webp(String saveDate, int imageSize) {
+		try {
+			ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(chunks);
+			// VP8X with the EXIF and XMP flags set
+			writeRiffChunk(out, "VP8X", new byte[] {0x0C, 0, 0, 0, (byte)0xFF, 0, 0, (byte)0xFF, 0, 0});
+			writeRiffChunk(out, "VP8 ", random(imageSize|1));
+			writeRiffChunk(out, "EXIF", exif(saveDate));
+			writeRiffChunk(out, "XMP ", xmp(saveDate));
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DataOutputStream file = new DataOutputStream(baos);
+			file.write("RIFF".getBytes(Charsets.ISO_8859_1));
+			file.writeInt(Integer.reverseBytes(chunks.size()+4));
+			file.write("WEBP".getBytes(Charsets.ISO_8859_1));
+			chunks.writeTo(file);
+			return baos.toByteArray();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Little-endian TIFF with DateTime in IFD0, and DateTimeOriginal, OffsetTime and SubSecTime
+	 * in the Exif IFD.
+	 */
+	private static byte[] exif(String saveDate) {
+		ByteBuffer bb = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+		bb.put((byte)'I').put((byte)'I').putShort((short)42).putInt(8);
+		// IFD0 at 8: 2 entries, then next-IFD offset; values start at 38
+		bb.putShort((short)2);
+		bb.putShort((short)0x0132).putShort((short)2).putInt(20).putInt(38);
+		bb.putShort((short)0x8769).putShort((short)4).putInt(1).putInt(58);
+		bb.putInt(0);
+		bb.put((saveDate+"\0").getBytes(Charsets.ISO_8859_1));
+		// Exif IFD at 58: 3 entries; values start at 100
+		bb.position(58);
+		bb.putShort((short)3);
+		bb.putShort((short)0x9003).putShort((short)2).putInt(20).putInt(100);
+		bb.putShort((short)0x9010).putShort((short)2).putInt(7).putInt(120);
+		bb.putShort((short)0x9290).putShort((short)2).putInt(4).put((saveDate.substring(17, 19)+"7\0").getBytes(Charsets.ISO_8859_1));
+		bb.putInt(0);
+		bb.position(100);
+		bb.put("2019:06:01 12:00:00\0".getBytes(Charsets.ISO_8859_1));
+		bb.put("+09:00\0".getBytes(Charsets.ISO_8859_1));
+		return Arrays.copyOf(bb.array(), bb.position());
+	}
+
+	private static byte[] xmp(String saveDate) {
+		String iso = saveDate.substring(0, 10).replace(':', '-')+"T"+saveDate.substring(11);
+		return ("<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"><rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">"
+				+"<rdf:Description xmlns:xmp=\"http://ns.adobe.com/xap/1.0/\" xmp:CreateDate=\"2019-06-01T12:00:00\" xmp:ModifyDate=\""+iso+"\">"
+				+"<xmp:MetadataDate>"+iso+"</xmp:MetadataDate>"
+				+"</rdf:Description></rdf:RDF></x:xmpmeta>").getBytes(Charsets.UTF_8);
+	}
+
+	private static void writeSegment(DataOutputStream out, int marker, byte[] data) throws IOException {
+		out.write(0xFF);
+		out.write(marker);
+		out.writeShort(data.length+2);
+		out.write(data);
+	}
+
+	private static void writeRiffChunk(DataOutputStream out, String type, byte[] data) throws IOException {
+		out.write(type.getBytes(Charsets.ISO_8859_1));
+		out.writeInt(Integer.reverseBytes(data.length));
+		out.write(data);
+		if ((data.length & 1) != 0) out.write(0);
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] out = Arrays.copyOf(a, a.length+b.length);
+		System.arraycopy(b, 0, out, a.length, b.length);
+		return out;
+	}
+
+	static HashCode hash(long seed) {
+		byte[] bys = new byte[64];
+		new Random(seed).nextBytes(bys);
+		return HashCode.fromBytes(bys);
+	}
+
+	private Samples() {}
+
+}
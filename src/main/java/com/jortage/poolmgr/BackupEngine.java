@@ -0,0 +1,285 @@
+package com.jortage.poolmgr;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobAccess;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.io.Payload;
+
+import com.jortage.poolmgr.KnownBlobs.KnownBlob;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Copies everything listed in pending_backup from the main backend to the backup backend.
+ * <p>
+ * Pending hashes are walked a page at a time in hash order and handed to a fixed pool of
+ * workers, each of which streams one blob straight from one backend to the other. Finished
+ * hashes are deleted from pending_backup in batches as we go, so an interrupted run picks up
+ * roughly where it left off. Anything that fails just stays pending for next time.
+ * <p>
+ * If both backends are the same account on the same provider, blobs are copied server-side
+ * instead, falling back to streaming for anything the provider won't copy.
+ * <p>
+ * Runs are kicked off by SIGALRM, or every {@code backup.intervalMinutes} if that's set.
+ */
+public final class BackupEngine {
+
+	private static final int PAGE_SIZE = 500;
+	private static final int DELETE_BATCH_SIZE = 100;
+	private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+	private static final AtomicBoolean running = new AtomicBoolean();
+	private static final LongAdder itemsDone = new LongAdder();
+	private static final LongAdder bytesDone = new LongAdder();
+	private static final LongAdder failures = new LongAdder();
+	private static final LongAdder serverSideCopies = new LongAdder();
+	private static final AtomicLong backlog = new AtomicLong();
+	private static volatile long lastStarted = System.currentTimeMillis();
+
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setNameFormat("Backup scheduler").setDaemon(true).build());
+
+	/**
+	 * Start checking once a minute whether it's time for a scheduled backup.
+	 */
+	public static void schedule() {
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				Poolmgr.reloadConfigIfChanged();
+				int interval = Poolmgr.backupIntervalMinutes;
+				if (interval <= 0 || Poolmgr.backupBucket == null) return;
+				if (System.currentTimeMillis()-lastStarted < TimeUnit.MINUTES.toMillis(interval)) return;
+				start();
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}, 1, 1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Start a backup run in the background.
+	 * @return false if there was already one running, or there's nowhere to back up to
+	 */
+	public static boolean start() {
+		if (Poolmgr.backupBucket == null) return false;
+		if (!running.compareAndSet(false, true)) return false;
+		lastStarted = System.currentTimeMillis();
+		Thread t = new Thread(() -> {
+			try {
+				run();
+			} finally {
+				running.set(false);
+			}
+		}, "Backup thread");
+		t.start();
+		return true;
+	}
+
+	public static boolean isRunning() {
+		return running.get();
+	}
+
+	/** @return the number of blobs backed up since startup */
+	public static long getItemsDone() {
+		return itemsDone.sum();
+	}
+
+	/** @return the number of bytes backed up since startup */
+	public static long getBytesDone() {
+		return bytesDone.sum();
+	}
+
+	/** @return the number of blobs that failed to back up since startup */
+	public static long getFailures() {
+		return failures.sum();
+	}
+
+	/** @return the number of blobs copied within the provider rather than through us, since startup */
+	public static long getServerSideCopies() {
+		return serverSideCopies.sum();
+	}
+
+	/** @return the number of blobs the current (or last) run has yet to get to */
+	public static long getBacklog() {
+		return backlog.get();
+	}
+
+	private static void run() {
+		BlobStore source = Poolmgr.backingBlobStore;
+		BlobStore dest = Poolmgr.backingBackupBlobStore;
+		String sourceBucket = Poolmgr.bucket;
+		String destBucket = Poolmgr.backupBucket;
+		DataSource dataSource = Poolmgr.dataSource;
+		int workers = Math.max(1, Poolmgr.backupWorkers);
+		boolean serverSideCopy = Poolmgr.backupServerSideCopy;
+		AtomicBoolean copyFailureLogged = new AtomicBoolean();
+
+		long items0 = getItemsDone(), bytes0 = getBytesDone(), failures0 = getFailures();
+		Stopwatch sw = Stopwatch.createStarted();
+		ExecutorService pool = Executors.newFixedThreadPool(workers,
+				new ThreadFactoryBuilder().setNameFormat("Backup worker #%d").setDaemon(true).build());
+		// keeps the workers busy without reading the whole table into memory
+		Semaphore inFlight = new Semaphore(workers*2);
+		Queue<HashCode> completed = new ConcurrentLinkedQueue<>();
+		try {
+			backlog.set(Queries.countPendingBackups(dataSource));
+			System.err.println("Starting backup of "+backlog.get()+" item"+s(backlog.get())+" with "+workers+" worker"+s(workers)
+					+(serverSideCopy ? ", copying server-side" : ""));
+			long lastReport = System.nanoTime();
+			HashCode after = null;
+			while (true) {
+				List<HashCode> page = Queries.getPendingBackups(dataSource, after, PAGE_SIZE);
+				if (page.isEmpty()) break;
+				for (HashCode hash : page) {
+					inFlight.acquireUninterruptibly();
+					pool.execute(() -> {
+						try {
+							if (serverSideCopy && copyServerSide(hash, source, sourceBucket, dest, destBucket, copyFailureLogged)) {
+								itemsDone.increment();
+								completed.add(hash);
+							} else if (copy(hash, source, sourceBucket, dest, destBucket)) {
+								itemsDone.increment();
+								completed.add(hash);
+							} else {
+								failures.increment();
+							}
+						} catch (Throwable t) {
+							t.printStackTrace();
+							System.err.println("Failed to back up "+hash);
+							failures.increment();
+						} finally {
+							// new uploads can land behind the cursor and get picked up too
+							backlog.updateAndGet((v) -> Math.max(0, v-1));
+							inFlight.release();
+						}
+					});
+				}
+				after = page.get(page.size()-1);
+				flush(dataSource, completed, false);
+				if (System.nanoTime()-lastReport > REPORT_INTERVAL_NANOS) {
+					lastReport = System.nanoTime();
+					report("Backup progress:", sw, items0, bytes0, failures0);
+				}
+			}
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+			flush(dataSource, completed, true);
+			report("Backup finished:", sw, items0, bytes0, failures0);
+		} catch (Exception e) {
+			e.printStackTrace();
+			pool.shutdownNow();
+			try {
+				// whatever did make it shouldn't have to be copied again
+				flush(dataSource, completed, true);
+			} catch (Exception e2) {
+				e2.printStackTrace();
+			}
+			report("Backup failed:", sw, items0, bytes0, failures0);
+		}
+	}
+
+	/**
+	 * Have the provider copy the blob into the backup bucket itself, so the data never comes
+	 * through us.
+	 * @return false if that didn't work out and the blob needs to be streamed across instead
+	 */
+	private static boolean copyServerSide(HashCode hash, BlobStore source, String sourceBucket, BlobStore dest, String destBucket, AtomicBoolean failureLogged) {
+		String path = Poolmgr.hashToPath(hash.toString());
+		try {
+			KnownBlob known = KnownBlobs.lookup(source, sourceBucket, hash);
+			// the odd missing-from-source case is the slow path's problem
+			if (known == null) return false;
+			dest.copyBlob(sourceBucket, path, destBucket, path, CopyOptions.NONE);
+			try {
+				dest.setBlobAccess(destBucket, path, BlobAccess.PUBLIC_READ);
+			} catch (UnsupportedOperationException ignore) {}
+			serverSideCopies.increment();
+			if (known.size != -1) bytesDone.add(known.size);
+			return true;
+		} catch (RuntimeException e) {
+			// e.g. over the provider's size limit for copies; only worth hearing about once a run
+			if (failureLogged.compareAndSet(false, true)) {
+				e.printStackTrace();
+				System.err.println("Server-side copy of "+path+" failed, falling back to streaming (further failures this run won't be logged)");
+			}
+			return false;
+		}
+	}
+
+	private static boolean copy(HashCode hash, BlobStore source, String sourceBucket, BlobStore dest, String destBucket) {
+		String path = Poolmgr.hashToPath(hash.toString());
+		Blob src = source.getBlob(sourceBucket, path);
+		if (src == null) {
+			Blob actualSrc = dest.getBlob(destBucket, path);
+			if (actualSrc == null) {
+				System.err.println("Can't find blob "+path+" in source or destination?");
+				return false;
+			} else {
+				System.err.println("Copying "+path+" from \"backup\" to current - this is a little odd");
+				transfer(actualSrc, source, sourceBucket);
+			}
+		} else {
+			transfer(src, dest, destBucket);
+		}
+		return true;
+	}
+
+	private static void transfer(Blob blob, BlobStore to, String bucket) {
+		// the payload is the GET's response body, so this streams through without touching disk
+		Payload payload = blob.getPayload();
+		try {
+			to.putBlob(bucket, blob, new PutOptions().setBlobAccess(BlobAccess.PUBLIC_READ));
+			Long len = payload.getContentMetadata().getContentLength();
+			if (len != null) bytesDone.add(len);
+		} finally {
+			payload.release();
+		}
+	}
+
+	private static void flush(DataSource dataSource, Queue<HashCode> completed, boolean all) {
+		while (all ? !completed.isEmpty() : completed.size() >= DELETE_BATCH_SIZE) {
+			List<HashCode> batch = Lists.newArrayListWithCapacity(DELETE_BATCH_SIZE);
+			HashCode hash;
+			while (batch.size() < DELETE_BATCH_SIZE && (hash = completed.poll()) != null) {
+				batch.add(hash);
+			}
+			Queries.removePendingBackups(dataSource, batch);
+		}
+	}
+
+	private static void report(String prefix, Stopwatch sw, long items0, long bytes0, long failures0) {
+		long items = getItemsDone()-items0;
+		long bytes = getBytesDone()-bytes0;
+		long failed = getFailures()-failures0;
+		double secs = Math.max(sw.elapsed(TimeUnit.MILLISECONDS), 1)/1000D;
+		System.err.println(prefix+" "+items+" item"+s(items)+" ("+(bytes/1024/1024)+" MiB) in "+sw
+				+String.format(", %.1f items/s, %.1f MiB/s", items/secs, bytes/1024D/1024D/secs)
+				+", "+failed+" failed, "+backlog.get()+" left");
+	}
+
+	private static String s(long i) {
+		return i == 1 ? "" : "s";
+	}
+
+	private BackupEngine() {}
+
+}
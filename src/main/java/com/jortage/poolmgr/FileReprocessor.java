@@ -1,142 +1,104 @@
 package com.jortage.poolmgr;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
-import com.jortage.poolmgr.util.PngSurgeon;
-import com.jortage.poolmgr.util.PngSurgeon.CRCException;
-import com.jortage.poolmgr.util.PngSurgeon.Chunk;
+import com.jortage.poolmgr.normalizer.JpegNormalizer;
+import com.jortage.poolmgr.normalizer.Normalizer;
+import com.jortage.poolmgr.normalizer.PngNormalizer;
+import com.jortage.poolmgr.normalizer.WebpNormalizer;
 
-import com.google.common.base.Charsets;
-import com.google.common.primitives.Longs;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
 
 public class FileReprocessor {
 
+	private static final int BUFFER_SIZE = 128*1024;
+	// big copy buffers shared between uploads; if they're all in use we make (and later drop) more
+	private static final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(32);
+
+	// in order of how likely they are to match, since the first one that does wins
+	private static final List<Normalizer> normalizers = ImmutableList.of(
+			new JpegNormalizer(),
+			new PngNormalizer(),
+			new WebpNormalizer()
+		);
+
 	public static void reprocess(InputStream in, OutputStream out) throws IOException {
-		byte[] magic = new byte[8];
-		int count = in.readNBytes(magic, 0, 8);
-		if (count != 8) {
-			out.write(magic, 0, count);
-			in.transferTo(out);
-		} else if (Longs.fromByteArray(magic) == PngSurgeon.PNG_MAGIC) {
-			try (var ps = new PngSurgeon(in, out)) {
-				out.write(magic, 0, count);
-				var baos = new ByteArrayOutputStream();
-				byte[] buf = new byte[512];
-				outer: while (true) {
-					int type = ps.readChunkType();
-					if (type == Chunk.tIME) {
-						// useless chunk that destroys dedupe
-						ps.skipChunkData();
-					} else if (type == Chunk.tEXt) {
-						int len = ps.getChunkLength();
-						glass: if (len < 16384) {
-							byte[] data;
-							try {
-								data = ps.readChunkData();
-							} catch (CRCException e) {
-								// uhh, okay. sure, you can enjoy that one
-								ps.copyChunk();
-								break glass;
-							}
-							var is = new ByteArrayInputStream(data);
-							baos.reset();
-							while (true) {
-								String key = readNulString(is, buf, 80);
-								if (key == null) {
-									// corrupted tEXt chunk
-									ps.writeChunk(Chunk.tEXt, data);
-									continue outer;
-								} else if (key.isEmpty()) {
-									// EOS
-									break;
-								}
-								boolean copy;
-								switch (key) {
-									case "date:timestamp":
-									case "date:modify":
-									case "date:create":
-										// useless entries that destroy dedupe
-										// (create is the closest to useful, but imagemagick will inject it in files that are missing a timestamp)
-										copy = false;
-										break;
-									default:
-										copy = true;
-										break;
-								}
-								if (copy) {
-									baos.write(key.getBytes(Charsets.ISO_8859_1));
-									baos.write(0);
-									transferNulBytes(is, buf, baos);
-									baos.write(0);
-								} else {
-									skipNulBytes(is, buf);
-								}
-							}
-							if (baos.size() != 0) {
-								ps.writeChunk(Chunk.tEXt, baos);
-							}
-						} else {
-							// alright have fun with that
-							ps.copyChunk();
-						}
-					} else {
-						ps.copyChunk();
-						if (type == Chunk.IEND) break;
-					}
-				}
-			}
+		byte[] header = new byte[Normalizer.HEADER_LENGTH];
+		int count = in.readNBytes(header, 0, header.length);
+		Normalizer n = findNormalizer(header, count);
+		if (n != null) {
+			n.normalize(header, count, in, out);
 		} else {
-			out.write(magic, 0, count);
+			out.write(header, 0, count);
 			in.transferTo(out);
 		}
 	}
-	
-	private static int readNulBytes(ByteArrayInputStream is, byte[] buf, int limit) {
-		is.mark(limit);
-		int count = is.readNBytes(buf, 0, limit);
-		if (count == 0) return 0;
-		int delimIdx = -1;
-		for (int i = 0; i < count; i++) {
-			if (buf[i] == 0) {
-				delimIdx = i;
-				break;
+
+	/**
+	 * Reprocess {@code in} into {@code out}, returning the SHA-512 of what was written.
+	 * <p>
+	 * Anything no {@link Normalizer} wants is copied through a large pooled buffer that also
+	 * feeds the digest, instead of going through transferTo's 8K buffer and a
+	 * HashingOutputStream. If {@code out} is a file, it's written through its channel.
+	 */
+	public static HashCode reprocessAndHash(InputStream in, OutputStream out) throws IOException {
+		byte[] buf = buffers.poll();
+		if (buf == null) buf = new byte[BUFFER_SIZE];
+		try {
+			int count = in.readNBytes(buf, 0, Normalizer.HEADER_LENGTH);
+			Normalizer norm = findNormalizer(buf, count);
+			if (norm != null) {
+				HashingOutputStream hos = new HashingOutputStream(Hashing.sha512(), out);
+				norm.normalize(Arrays.copyOf(buf, count), count, in, hos);
+				return hos.hash();
 			}
-		}
-		is.reset();
-		is.skip(delimIdx+1);
-		return delimIdx;
-	}
-	
-	private static void transferNulBytes(ByteArrayInputStream in, byte[] buf, OutputStream out) throws IOException {
-		while (true) {
-			int len = readNulBytes(in, buf, buf.length);
-			if (len == 0) break;
-			if (len == -1) {
-				out.write(buf);
-				in.skip(buf.length);
-			} else {
-				out.write(buf, 0, len);
-				break;
+			MessageDigest md = sha512();
+			WritableByteChannel ch = out instanceof FileOutputStream ? ((FileOutputStream)out).getChannel() : null;
+			int n = count;
+			if (n == Normalizer.HEADER_LENGTH) n += in.readNBytes(buf, n, buf.length-n);
+			while (n > 0) {
+				md.update(buf, 0, n);
+				if (ch != null) {
+					ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+					while (bb.hasRemaining()) ch.write(bb);
+				} else {
+					out.write(buf, 0, n);
+				}
+				n = in.read(buf);
 			}
+			return HashCode.fromBytes(md.digest());
+		} finally {
+			buffers.offer(buf);
 		}
 	}
-	
-	private static void skipNulBytes(ByteArrayInputStream in, byte[] buf) throws IOException {
-		while (true) {
-			if (readNulBytes(in, buf, buf.length) != -1) break;
-			in.skip(buf.length);
+
+	private static Normalizer findNormalizer(byte[] header, int length) {
+		for (Normalizer n : normalizers) {
+			if (n.matches(header, length)) return n;
 		}
+		return null;
 	}
-	
-	private static String readNulString(ByteArrayInputStream is, byte[] buf, int limit) {
-		int len = readNulBytes(is, buf, limit);
-		if (len == 0) return "";
-		if (len == -1) return null;
-		return new String(buf, 0, len, Charsets.ISO_8859_1);
+
+	private static MessageDigest sha512() {
+		try {
+			return MessageDigest.getInstance("SHA-512");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
 	}
 
 }
@@ -2,13 +2,21 @@ package com.jortage.poolmgr;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
 
@@ -37,16 +45,58 @@ import org.jclouds.domain.internal.LocationImpl;
 import org.jclouds.io.Payload;
 import org.jclouds.io.payloads.FilePayload;
 
+import com.jortage.poolmgr.KnownBlobs.KnownBlob;
+import com.jortage.poolmgr.Queries.BlobMissingException;
+import com.jortage.poolmgr.metrics.Histogram;
+import com.jortage.poolmgr.metrics.Metrics;
+
+import com.google.common.base.CharMatcher;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
-import com.google.common.hash.HashingOutputStream;
+import com.google.common.hash.HashingInputStream;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class JortageBlobStore extends ForwardingBlobStore {
+	private static final String DECLARED_HASH_KEY = "jortage-hash";
+	private static final CharMatcher HEX_MATCHER = CharMatcher.anyOf("0123456789abcdef");
+
+	// in-progress multipart uploads by upload ID; shared since we get a new JortageBlobStore per request
+	private static final Cache<String, MultipartHasher> multipartHashers = CacheBuilder.newBuilder()
+			.maximumSize(1024)
+			.expireAfterAccess(12, TimeUnit.HOURS)
+			.<String, MultipartHasher>removalListener((n) -> n.getValue().close())
+			.build();
+
+	private static final Histogram GET_TIME = s3Timer("get");
+	private static final Histogram HEAD_TIME = s3Timer("head");
+	private static final Histogram PUT_TIME = s3Timer("put");
+	private static final Histogram COPY_TIME = s3Timer("copy");
+	private static final Histogram MULTIPART_INITIATE_TIME = s3Timer("multipart_initiate");
+	private static final Histogram MULTIPART_PART_TIME = s3Timer("multipart_part");
+	private static final Histogram MULTIPART_COMPLETE_TIME = s3Timer("multipart_complete");
+	private static final Histogram MULTIPART_ABORT_TIME = s3Timer("multipart_abort");
+	private static final Histogram DELETE_TIME = s3Timer("delete");
+	private static final Histogram DELETE_MANY_TIME = s3Timer("delete_many");
+
+	// S3 won't take more than 1000 keys in one DeleteObjects request
+	private static final int DELETE_BATCH_SIZE = 1000;
+	private static final ExecutorService deleteExecutor = Executors.newFixedThreadPool(4,
+			new ThreadFactoryBuilder().setNameFormat("Blob remover #%d").setDaemon(true).build());
+
+	private static Histogram s3Timer(String op) {
+		return Metrics.histogram("poolmgr_s3_request_seconds", "Time spent handling S3 requests, by operation", "op", op);
+	}
+
 	private final BlobStore dumpsStore;
 	private final String identity;
 	private final String bucket;
@@ -88,6 +138,15 @@ public class JortageBlobStore extends ForwardingBlobStore {
 
 	@Override
 	public Blob getBlob(String container, String name) {
+		long start = System.nanoTime();
+		try {
+			return doGetBlob(container, name);
+		} finally {
+			GET_TIME.observeSince(start);
+		}
+	}
+
+	private Blob doGetBlob(String container, String name) {
 		if (isDump(name)) {
 			checkContainer(container);
 			return dumpsStore.getBlob(container, name);
@@ -97,6 +156,15 @@ public class JortageBlobStore extends ForwardingBlobStore {
 
 	@Override
 	public Blob getBlob(String container, String name, GetOptions getOptions) {
+		long start = System.nanoTime();
+		try {
+			return doGetBlob(container, name, getOptions);
+		} finally {
+			GET_TIME.observeSince(start);
+		}
+	}
+
+	private Blob doGetBlob(String container, String name, GetOptions getOptions) {
 		if (isDump(name)) {
 			checkContainer(container);
 			return dumpsStore.getBlob(container, name, getOptions);
@@ -165,6 +233,15 @@ public class JortageBlobStore extends ForwardingBlobStore {
 
 	@Override
 	public BlobMetadata blobMetadata(String container, String name) {
+		long start = System.nanoTime();
+		try {
+			return doBlobMetadata(container, name);
+		} finally {
+			HEAD_TIME.observeSince(start);
+		}
+	}
+
+	private BlobMetadata doBlobMetadata(String container, String name) {
 		if (isDump(name)) {
 			checkContainer(container);
 			return dumpsStore.blobMetadata(container, name);
@@ -194,62 +271,193 @@ public class JortageBlobStore extends ForwardingBlobStore {
 
 	@Override
 	public String putBlob(String container, Blob blob) {
+		long start = System.nanoTime();
+		try {
+			return doPutBlob(container, blob);
+		} finally {
+			PUT_TIME.observeSince(start);
+		}
+	}
+
+	private String doPutBlob(String container, Blob blob) {
 		Poolmgr.checkReadOnly();
 		checkContainer(container);
 		String blobName = blob.getMetadata().getName();
 		if (isDump(blobName)) {
 			return dumpsStore.putBlob(container, blob, new PutOptions().setBlobAccess(BlobAccess.PUBLIC_READ));
 		}
-		File tempFile = null;
-		Object mutex = new Object();
-		synchronized (Poolmgr.provisionalMaps) {
-			Poolmgr.provisionalMaps.put(identity, blobName, mutex);
+		Map<String, String> userMetadata = Maps.newHashMap(blob.getMetadata().getUserMetadata());
+		HashCode declaredHash = takeDeclaredHash(userMetadata);
+		if (declaredHash != null) {
+			// client told us what it's uploading; if we already have it, don't bother reading the body
+			// (only works if it declared the normalized hash, but a raw one just misses here)
+			KnownBlob known = KnownBlobs.lookup(delegate(), bucket, declaredHash);
+			if (known != null && dedupe(blobName, declaredHash)) {
+				PoolMetrics.UPLOADS_DEDUPLICATED.inc();
+				return known.etag;
+			}
 		}
+		File tempFile = null;
+		String provisionalKey = Poolmgr.provisionalKey(identity, blobName);
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		Poolmgr.provisionalMaps.put(provisionalKey, done);
 		try {
+			String contentType = blob.getPayload().getContentMetadata().getContentType();
+			if (Poolmgr.streamingUploads) {
+				return putBlobStreaming(blob, blobName, contentType, userMetadata, declaredHash);
+			}
 			File f = File.createTempFile("jortage-proxy-", ".dat");
 			tempFile = f;
-			String contentType = blob.getPayload().getContentMetadata().getContentType();
 			HashCode hash;
+			HashCode rawHash;
 			try (InputStream is = blob.getPayload().openStream();
 					FileOutputStream fos = new FileOutputStream(f)) {
-				HashingOutputStream hos = new HashingOutputStream(Hashing.sha512(), fos);
-				FileReprocessor.reprocess(is, hos);
-				hash = hos.hash();
+				HashingInputStream his = declaredHash == null ? null : new HashingInputStream(Hashing.sha512(), is);
+				hash = FileReprocessor.reprocessAndHash(his == null ? is : unclosable(his), fos);
+				rawHash = finishRawHash(his);
 			}
+			PoolMetrics.BYTES_HASHED.add(f.length());
+			checkDeclaredHash(declaredHash, rawHash, hash);
 			String hashString = hash.toString();
 			try (Payload payload = new FilePayload(f)) {
 				payload.getContentMetadata().setContentType(contentType);
-				BlobMetadata meta = delegate().blobMetadata(bucket, Poolmgr.hashToPath(hashString));
-				if (meta != null) {
-					String etag = meta.getETag();
-					Queries.putMap(dataSource, identity, blobName, hash);
-					return etag;
+				KnownBlob known = KnownBlobs.lookup(delegate(), bucket, hash);
+				if (known != null && dedupe(blobName, hash)) {
+					PoolMetrics.UPLOADS_DEDUPLICATED.inc();
+					return known.etag;
 				}
 				Blob blob2 = blobBuilder(Poolmgr.hashToPath(hashString))
 						.payload(payload)
-						.userMetadata(blob.getMetadata().getUserMetadata())
+						.userMetadata(userMetadata)
 						.build();
 				String etag = delegate().putBlob(bucket, blob2, new PutOptions().setBlobAccess(BlobAccess.PUBLIC_READ).multipart());
-				Queries.putPendingBackup(dataSource, hash);
-				Queries.putMap(dataSource, identity, blobName, hash);
-				Queries.putFilesize(dataSource, hash, f.length());
+				KnownBlobs.put(hash, etag, f.length());
+				Queries.begin(dataSource)
+						.putPendingBackup(hash)
+						.putMap(identity, blobName, hash)
+						.putFilesize(hash, f.length())
+						.commit();
+				PoolMetrics.UPLOADS_NEW.inc();
 				return etag;
 			}
 		} catch (IOException e) {
 			throw new UncheckedIOException(e);
 		} finally {
 			if (tempFile != null) tempFile.delete();
-			synchronized (Poolmgr.provisionalMaps) {
-				Poolmgr.provisionalMaps.remove(identity, blobName);
+			Poolmgr.provisionalMaps.remove(provisionalKey, done);
+			done.complete(null);
+		}
+	}
+
+	private String putBlobStreaming(Blob blob, String blobName, String contentType, Map<String, String> userMetadata, HashCode declaredHash) throws IOException {
+		ProvisionalUpload pu = new ProvisionalUpload(delegate(), bucket, contentType, userMetadata);
+		try {
+			HashCode hash;
+			HashCode rawHash;
+			try (InputStream is = blob.getPayload().openStream()) {
+				HashingInputStream his = declaredHash == null ? null : new HashingInputStream(Hashing.sha512(), is);
+				hash = FileReprocessor.reprocessAndHash(his == null ? is : unclosable(his), pu);
+				rawHash = finishRawHash(his);
 			}
-			synchronized (mutex) {
-				mutex.notifyAll();
+			PoolMetrics.BYTES_HASHED.add(pu.getSize());
+			checkDeclaredHash(declaredHash, rawHash, hash);
+			KnownBlob known = KnownBlobs.lookup(delegate(), bucket, hash);
+			if (known != null && dedupe(blobName, hash)) {
+				PoolMetrics.UPLOADS_DEDUPLICATED.inc();
+				return known.etag;
 			}
+			String etag = pu.promote(Poolmgr.hashToPath(hash.toString()));
+			KnownBlobs.put(hash, etag, pu.getSize());
+			Queries.begin(dataSource)
+					.putPendingBackup(hash)
+					.putMap(identity, blobName, hash)
+					.putFilesize(hash, pu.getSize())
+					.commit();
+			PoolMetrics.UPLOADS_NEW.inc();
+			return etag;
+		} finally {
+			pu.abort();
+		}
+	}
+
+	/**
+	 * Map a name onto a blob we believe is already in the pool.
+	 * @return false if it turned out not to be (it was deleted after we looked), in which case
+	 * 		the caller has to store it
+	 */
+	private boolean dedupe(String blobName, HashCode hash) {
+		try {
+			Queries.putMap(dataSource, identity, blobName, hash);
+			return true;
+		} catch (BlobMissingException e) {
+			KnownBlobs.invalidate(hash);
+			return false;
+		}
+	}
+
+	/**
+	 * Pull the client-declared hash (x-amz-meta-jortage-hash) out of the user metadata, so it
+	 * doesn't end up stored on the blob.
+	 */
+	private static HashCode takeDeclaredHash(Map<String, String> userMetadata) {
+		String declared = null;
+		for (Iterator<Map.Entry<String, String>> iter = userMetadata.entrySet().iterator(); iter.hasNext();) {
+			Map.Entry<String, String> en = iter.next();
+			if (DECLARED_HASH_KEY.equalsIgnoreCase(en.getKey())) {
+				declared = en.getValue();
+				iter.remove();
+			}
+		}
+		if (declared == null) return null;
+		declared = declared.trim().toLowerCase(Locale.ROOT);
+		if (declared.length() != 128 || !HEX_MATCHER.matchesAllOf(declared)) {
+			throw new IllegalArgumentException("Declared hash must be a hex SHA-512");
+		}
+		return HashCode.fromString(declared);
+	}
+
+	/**
+	 * The normalizers close their input when they're done with it, which (for PNG) can be before
+	 * the end; the raw hash still needs the rest.
+	 */
+	private static InputStream unclosable(InputStream in) {
+		return new FilterInputStream(in) {
+			@Override
+			public void close() {}
+		};
+	}
+
+	/**
+	 * Read whatever the reprocessor left of the body, so the raw hash covers all of it.
+	 */
+	private static HashCode finishRawHash(HashingInputStream his) throws IOException {
+		if (his == null) return null;
+		ByteStreams.exhaust(his);
+		return his.hash();
+	}
+
+	/**
+	 * A client can only know the hash of what it sent, which isn't what we store if a
+	 * normalizer rewrote it, so the declared hash may match either. Storage always uses the
+	 * normalized hash; only that one can short-circuit reading the body.
+	 */
+	private static void checkDeclaredHash(HashCode declaredHash, HashCode rawHash, HashCode normalizedHash) {
+		if (declaredHash != null && !declaredHash.equals(rawHash) && !declaredHash.equals(normalizedHash)) {
+			throw new IllegalArgumentException("Hash of body ("+rawHash+", normalized "+normalizedHash+") did not match declared hash ("+declaredHash+")");
 		}
 	}
 
 	@Override
 	public String copyBlob(String fromContainer, String fromName, String toContainer, String toName, CopyOptions options) {
+		long start = System.nanoTime();
+		try {
+			return doCopyBlob(fromContainer, fromName, toContainer, toName, options);
+		} finally {
+			COPY_TIME.observeSince(start);
+		}
+	}
+
+	private String doCopyBlob(String fromContainer, String fromName, String toContainer, String toName, CopyOptions options) {
 		Poolmgr.checkReadOnly();
 		checkContainer(fromContainer);
 		checkContainer(toContainer);
@@ -259,12 +467,27 @@ public class JortageBlobStore extends ForwardingBlobStore {
 		}
 		// javadoc says options are ignored, so we ignore them too
 		HashCode hash = Queries.getMap(dataSource, identity, fromName);
-		Queries.putMap(dataSource, identity, toName, hash);
-		return blobMetadata(bucket, Poolmgr.hashToPath(hash.toString())).getETag();
+		try {
+			Queries.putMap(dataSource, identity, toName, hash);
+		} catch (BlobMissingException e) {
+			// the source was deleted out from under us
+			throw new IllegalArgumentException("Not found", e);
+		}
+		KnownBlob known = KnownBlobs.lookup(delegate(), bucket, hash);
+		return known == null ? null : known.etag;
 	}
 
 	@Override
 	public MultipartUpload initiateMultipartUpload(String container, BlobMetadata blobMetadata, PutOptions options) {
+		long start = System.nanoTime();
+		try {
+			return doInitiateMultipartUpload(container, blobMetadata, options);
+		} finally {
+			MULTIPART_INITIATE_TIME.observeSince(start);
+		}
+	}
+
+	private MultipartUpload doInitiateMultipartUpload(String container, BlobMetadata blobMetadata, PutOptions options) {
 		Poolmgr.checkReadOnly();
 		checkContainer(container);
 		if (isDump(blobMetadata.getName())) {
@@ -276,7 +499,9 @@ public class JortageBlobStore extends ForwardingBlobStore {
 		mbm.getUserMetadata().put("jortage-creator", identity);
 		mbm.getUserMetadata().put("jortage-originalname", blobMetadata.getName());
 		Queries.putMultipart(dataSource, identity, blobMetadata.getName(), tempfile);
-		return delegate().initiateMultipartUpload(bucket, mbm, new PutOptions().setBlobAccess(BlobAccess.PUBLIC_READ));
+		MultipartUpload mpu = delegate().initiateMultipartUpload(bucket, mbm, new PutOptions().setBlobAccess(BlobAccess.PUBLIC_READ));
+		multipartHashers.put(mpu.id(), new MultipartHasher());
+		return mpu;
 	}
 
 	private MultipartUpload mask(MultipartUpload mpu) {
@@ -291,6 +516,15 @@ public class JortageBlobStore extends ForwardingBlobStore {
 
 	@Override
 	public void abortMultipartUpload(MultipartUpload mpu) {
+		long start = System.nanoTime();
+		try {
+			doAbortMultipartUpload(mpu);
+		} finally {
+			MULTIPART_ABORT_TIME.observeSince(start);
+		}
+	}
+
+	private void doAbortMultipartUpload(MultipartUpload mpu) {
 		Poolmgr.checkReadOnly();
 		if (isDump(mpu.blobName())) {
 			checkContainer(mpu.containerName());
@@ -298,10 +532,20 @@ public class JortageBlobStore extends ForwardingBlobStore {
 			return;
 		}
 		delegate().abortMultipartUpload(mask(mpu));
+		multipartHashers.invalidate(mpu.id());
 	}
 
 	@Override
 	public String completeMultipartUpload(MultipartUpload mpu, List<MultipartPart> parts) {
+		long start = System.nanoTime();
+		try {
+			return doCompleteMultipartUpload(mpu, parts);
+		} finally {
+			MULTIPART_COMPLETE_TIME.observeSince(start);
+		}
+	}
+
+	private String doCompleteMultipartUpload(MultipartUpload mpu, List<MultipartPart> parts) {
 		try {
 			Poolmgr.checkReadOnly();
 			if (isDump(mpu.blobName())) {
@@ -309,42 +553,63 @@ public class JortageBlobStore extends ForwardingBlobStore {
 				return dumpsStore.completeMultipartUpload(mpu, parts);
 			}
 			mpu = mask(mpu);
-			// TODO this is a bit of a hack and isn't very efficient
+			MultipartHasher hasher = multipartHashers.getIfPresent(mpu.id());
+			MultipartHasher.Result result = hasher == null ? null : hasher.finish(parts);
 			String etag = delegate().completeMultipartUpload(mpu, parts);
-			try (InputStream stream = delegate().getBlob(mpu.containerName(), mpu.blobName()).getPayload().openStream()) {
-				CountingOutputStream counter = new CountingOutputStream(ByteStreams.nullOutputStream());
-				HashingOutputStream hos = new HashingOutputStream(Hashing.sha512(), counter);
-				FileReprocessor.reprocess(stream, hos);
-				HashCode hash = hos.hash();
+			multipartHashers.invalidate(mpu.id());
+			try {
+				HashCode hash;
+				long size;
+				if (result != null) {
+					hash = result.hash;
+					size = result.size;
+				} else {
+					// we lost track of this one (restart, re-uploaded part, etc) so we have to
+					// download the whole thing back to find out what's in it
+					try (InputStream stream = delegate().getBlob(mpu.containerName(), mpu.blobName()).getPayload().openStream()) {
+						CountingOutputStream counter = new CountingOutputStream(ByteStreams.nullOutputStream());
+						hash = FileReprocessor.reprocessAndHash(stream, counter);
+						size = counter.getCount();
+					}
+				}
+				PoolMetrics.BYTES_HASHED.add(size);
 				String hashStr = hash.toString();
 				String path = Poolmgr.hashToPath(hashStr);
-				// we're about to do a bunch of stuff at once
-				// sleep so we don't fall afoul of request rate limits
-				// (causes intermittent 429s on at least DigitalOcean)
-				Thread.sleep(100);
 				BlobMetadata meta = delegate().blobMetadata(mpu.containerName(), mpu.blobName());
-				BlobMetadata targetMeta = delegate().blobMetadata(bucket, path);
-				if (targetMeta == null) {
-					Thread.sleep(100);
+				String originalName = Preconditions.checkNotNull(meta.getUserMetadata().get("jortage-originalname"));
+				KnownBlob known = KnownBlobs.lookup(delegate(), bucket, hash);
+				if (known != null) {
+					try {
+						Queries.begin(dataSource)
+								.putMap(identity, originalName, hash)
+								.putFilesize(hash, size)
+								.removeMultipart(mpu.blobName())
+								.commit();
+						etag = known.etag;
+						PoolMetrics.UPLOADS_DEDUPLICATED.inc();
+					} catch (BlobMissingException e) {
+						// deleted since we looked; we've still got the upload, so store it after all
+						KnownBlobs.invalidate(hash);
+						known = null;
+					}
+				}
+				if (known == null) {
 					etag = delegate().copyBlob(mpu.containerName(), mpu.blobName(), bucket, path, CopyOptions.builder().contentMetadata(meta.getContentMetadata()).build());
-					Thread.sleep(100);
 					try {
 						delegate().setBlobAccess(bucket, path, BlobAccess.PUBLIC_READ);
 					} catch (UnsupportedOperationException ignore) {}
-					Queries.putPendingBackup(dataSource, hash);
-				} else {
-					Thread.sleep(100);
-					etag = targetMeta.getETag();
+					KnownBlobs.put(hash, etag, size);
+					Queries.begin(dataSource)
+							.putPendingBackup(hash)
+							.putMap(identity, originalName, hash)
+							.putFilesize(hash, size)
+							.removeMultipart(mpu.blobName())
+							.commit();
+					PoolMetrics.UPLOADS_NEW.inc();
 				}
-				Queries.putMap(dataSource, identity, Preconditions.checkNotNull(meta.getUserMetadata().get("jortage-originalname")), hash);
-				Queries.putFilesize(dataSource, hash, counter.getCount());
-				Queries.removeMultipart(dataSource, mpu.blobName());
-				Thread.sleep(100);
 				delegate().removeBlob(mpu.containerName(), mpu.blobName());
 			} catch (IOException e) {
 				throw new UncheckedIOException(e);
-			} catch (InterruptedException e) {
-				throw new RuntimeException(e);
 			}
 			return etag;
 		} catch (Error | RuntimeException e) {
@@ -355,12 +620,30 @@ public class JortageBlobStore extends ForwardingBlobStore {
 
 	@Override
 	public MultipartPart uploadMultipartPart(MultipartUpload mpu, int partNumber, Payload payload) {
+		long start = System.nanoTime();
+		try {
+			return doUploadMultipartPart(mpu, partNumber, payload);
+		} finally {
+			MULTIPART_PART_TIME.observeSince(start);
+		}
+	}
+
+	private MultipartPart doUploadMultipartPart(MultipartUpload mpu, int partNumber, Payload payload) {
 		Poolmgr.checkReadOnly();
 		if (isDump(mpu.blobName())) {
 			checkContainer(mpu.containerName());
 			return dumpsStore.uploadMultipartPart(mpu, partNumber, payload);
 		}
-		return delegate().uploadMultipartPart(mask(mpu), partNumber, payload);
+		MultipartUpload masked = mask(mpu);
+		MultipartHasher hasher = multipartHashers.getIfPresent(masked.id());
+		if (hasher == null) {
+			return delegate().uploadMultipartPart(masked, partNumber, payload);
+		}
+		try {
+			return hasher.upload(partNumber, payload, (p) -> delegate().uploadMultipartPart(masked, partNumber, p));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
 	}
 
 	@Override
@@ -392,29 +675,107 @@ public class JortageBlobStore extends ForwardingBlobStore {
 
 	@Override
 	public void removeBlob(String container, String name) {
+		long start = System.nanoTime();
+		try {
+			doRemoveBlob(container, name);
+		} finally {
+			DELETE_TIME.observeSince(start);
+		}
+	}
+
+	private void doRemoveBlob(String container, String name) {
 		Poolmgr.checkReadOnly();
 		checkContainer(container);
 		if (isDump(name)) {
 			dumpsStore.removeBlob(container, name);
 			return;
 		}
-		HashCode hc = Queries.getMap(dataSource, identity, name);
-		if (Queries.removeMap(dataSource, identity, name)) {
-			int rc = Queries.getMapCount(dataSource, hc);
-			if (rc == 0) {
-				String hashString = hc.toString();
-				String path = Poolmgr.hashToPath(hashString);
-				delegate().removeBlob(bucket, path);
-				Queries.removeFilesize(dataSource, hc);
-				Queries.removePendingBackup(dataSource, hc);
-			}
+		// throws if the name isn't mapped, so the client gets its 404
+		Queries.getMap(dataSource, identity, name);
+		HashCode hc = Queries.removeMap(dataSource, identity, name);
+		if (hc != null) {
+			Queries.forgetUnreferenced(dataSource, Collections.singleton(hc), false, this::removeFromBackend);
 		}
 	}
 
 	@Override
 	public void removeBlobs(String container, Iterable<String> iterable) {
+		long start = System.nanoTime();
+		try {
+			doRemoveBlobs(container, iterable);
+		} finally {
+			DELETE_MANY_TIME.observeSince(start);
+		}
+	}
+
+	private void doRemoveBlobs(String container, Iterable<String> iterable) {
+		Poolmgr.checkReadOnly();
+		checkContainer(container);
+		List<String> names = Lists.newArrayList();
+		List<String> dumps = Lists.newArrayList();
 		for (String s : iterable) {
-			removeBlob(container, s);
+			(isDump(s) ? dumps : names).add(s);
+		}
+		if (!dumps.isEmpty()) {
+			dumpsStore.removeBlobs(container, dumps);
+		}
+		if (names.isEmpty()) return;
+		Set<HashCode> orphaned = Queries.removeMaps(dataSource, identity, names);
+		if (orphaned.isEmpty()) return;
+		Queries.forgetUnreferenced(dataSource, orphaned, false, this::removeFromBackend);
+	}
+
+	/**
+	 * Delete blobs from the backend. Called by forgetUnreferenced with their refcounts rows
+	 * marked, so nothing can map a name onto them meanwhile.
+	 * @return the hashes whose blobs were deleted, which is fewer than asked for if some of the
+	 * 		batches failed
+	 */
+	private Set<HashCode> removeFromBackend(Set<HashCode> hashes) {
+		Map<String, HashCode> paths = Maps.newLinkedHashMap();
+		for (HashCode hc : hashes) {
+			// forget it first, so nothing is told it exists while it's being deleted
+			KnownBlobs.invalidate(hc);
+			paths.put(Poolmgr.hashToPath(hc.toString()), hc);
+		}
+		try {
+			if (paths.size() == 1) {
+				delegate().removeBlob(bucket, Iterables.getOnlyElement(paths.keySet()));
+				return hashes;
+			}
+			List<List<String>> chunks = Lists.partition(Lists.newArrayList(paths.keySet()), DELETE_BATCH_SIZE);
+			List<CompletableFuture<Void>> futures = Lists.newArrayList();
+			for (List<String> chunk : chunks) {
+				futures.add(CompletableFuture.runAsync(() -> delegate().removeBlobs(bucket, chunk), deleteExecutor));
+			}
+			Set<HashCode> removed = Sets.newHashSet();
+			RuntimeException error = null;
+			for (int i = 0; i < chunks.size(); i++) {
+				try {
+					futures.get(i).join();
+					for (String path : chunks.get(i)) {
+						removed.add(paths.get(path));
+					}
+				} catch (CompletionException e) {
+					if (error == null) {
+						error = e.getCause() instanceof RuntimeException ? (RuntimeException)e.getCause() : new RuntimeException(e.getCause());
+					} else {
+						error.addSuppressed(e.getCause());
+					}
+				}
+			}
+			if (error != null) {
+				if (removed.isEmpty()) throw error;
+				// the rest keep their rows and get another go later; no reason to fail the
+				// request over them, the names are already gone
+				error.printStackTrace();
+			}
+			return removed;
+		} finally {
+			// and again, in case a lookup put it back before the delete landed
+			for (HashCode hc : hashes) {
+				KnownBlobs.invalidate(hc);
+			}
 		}
 	}
 
@@ -0,0 +1,68 @@
+package com.jortage.poolmgr;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.BlobMetadata;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+
+/**
+ * Remembers which hashes are present in the backing store, along with their ETag and size, so
+ * deduplicated uploads don't each need a HEAD to find out. Blobs are content-addressed and
+ * never modified, so a positive answer only goes stale when the blob is removed, and we're the
+ * only ones removing them. Negative answers aren't cached.
+ */
+public final class KnownBlobs {
+
+	public static final class KnownBlob {
+		public final String etag;
+		/** -1 if the backend didn't tell us */
+		public final long size;
+		private KnownBlob(String etag, long size) {
+			this.etag = etag;
+			this.size = size;
+		}
+	}
+
+	private static final Cache<HashCode, KnownBlob> cache = CacheBuilder.newBuilder()
+			.maximumSize(65536)
+			.recordStats()
+			.build();
+
+	/**
+	 * Find out if a blob with the given hash exists, asking the backend if we don't already know.
+	 * @return the blob's details, or null if it doesn't exist
+	 */
+	public static KnownBlob lookup(BlobStore store, String bucket, HashCode hash) {
+		KnownBlob kb = cache.getIfPresent(hash);
+		if (kb != null) return kb;
+		BlobMetadata meta = store.blobMetadata(bucket, Poolmgr.hashToPath(hash.toString()));
+		if (meta == null) return null;
+		kb = new KnownBlob(meta.getETag(), meta.getSize() == null ? -1 : meta.getSize());
+		cache.put(hash, kb);
+		return kb;
+	}
+
+	/**
+	 * Record that we just stored a blob.
+	 */
+	public static void put(HashCode hash, String etag, long size) {
+		cache.put(hash, new KnownBlob(etag, size));
+	}
+
+	/**
+	 * Forget about a blob, because it's been (or is about to be) removed.
+	 */
+	public static void invalidate(HashCode hash) {
+		cache.invalidate(hash);
+	}
+
+	public static CacheStats stats() {
+		return cache.stats();
+	}
+
+	private KnownBlobs() {}
+
+}
@@ -0,0 +1,383 @@
+package com.jortage.poolmgr;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+
+import com.jortage.poolmgr.util.ByteSinkSource;
+import com.jortage.poolmgr.util.FileByteSinkSource;
+import com.jortage.poolmgr.util.MemoryByteSinkSource;
+
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Hashes a multipart upload as its parts arrive, so completing it doesn't mean downloading the
+ * whole thing back from the backend.
+ * <p>
+ * FileReprocessor wants to pull from an InputStream, so it runs on its own thread reading from a
+ * pipe that parts get pushed into, in order, as they're uploaded. The thread and pipe aren't set
+ * up until part 1 arrives, so an upload that's been initiated but not started costs nothing. Parts that show up early are
+ * spilled (to memory or a temp file, same as Rivet) until everything before them has been fed
+ * through, which happens on a shared drainer thread rather than whichever request filled the gap.
+ * Anything we can't account for (a part being uploaded twice, something going wrong partway
+ * through feeding one, more spilled than we're willing to hold) poisons the hasher, and
+ * completion falls back to the old download-and-hash approach. Nothing that happens in here is
+ * allowed to fail an upload.
+ */
+public class MultipartHasher {
+
+	// past this, an upload is too far out of order to be worth spooling; hash it the slow way
+	private static final int MAX_SPILLED_PARTS = 64;
+	private static final long MAX_SPILLED_BYTES = 1024L*1024L*1024L;
+
+	private static final ExecutorService drainer = Executors.newCachedThreadPool(
+			new ThreadFactoryBuilder().setNameFormat("Multipart spill drainer #%d").setDaemon(true).build());
+
+	public static final class Result {
+		public final HashCode hash;
+		public final long size;
+		private Result(HashCode hash, long size) {
+			this.hash = hash;
+			this.size = size;
+		}
+	}
+
+	private enum Mode {
+		PASSTHROUGH, TEE, SPILL
+	}
+
+	private static final class Spill {
+		private final ByteSinkSource bss;
+		private final long size;
+		private Spill(ByteSinkSource bss, long size) {
+			this.bss = bss;
+			this.size = size;
+		}
+	}
+
+	private OutputStream sink;
+	private Thread thread;
+	private final CountingOutputStream counter = new CountingOutputStream(ByteStreams.nullOutputStream());
+	private volatile HashCode hash;
+	private volatile Throwable error;
+
+	private final Set<Integer> seen = Sets.newHashSet();
+	private final NavigableMap<Integer, Spill> spilled = new TreeMap<>();
+	private int nextPart = 1;
+	// includes parts still being spilled
+	private int spilledParts;
+	private long spilledBytes;
+	private boolean feeding;
+	private boolean poisoned;
+	private boolean sinkClosed;
+	private Result result;
+
+	/**
+	 * Upload a part via {@code uploader}, feeding it into the hash along the way.
+	 */
+	public MultipartPart upload(int partNumber, Payload payload, Function<Payload, MultipartPart> uploader) throws IOException {
+		Long len = payload.getContentMetadata().getContentLength();
+		Mode mode;
+		synchronized (this) {
+			if (poisoned) {
+				mode = Mode.PASSTHROUGH;
+			} else if (!seen.add(partNumber)) {
+				// a retry or an overwrite; either way we've lost track of what's in this upload
+				poison();
+				mode = Mode.PASSTHROUGH;
+			} else if (partNumber == nextPart) {
+				if (startHasher()) {
+					feeding = true;
+					mode = Mode.TEE;
+				} else {
+					mode = Mode.PASSTHROUGH;
+				}
+			} else if (len == null || spilledParts >= MAX_SPILLED_PARTS || spilledBytes+len > MAX_SPILLED_BYTES) {
+				poison();
+				mode = Mode.PASSTHROUGH;
+			} else {
+				spilledParts++;
+				spilledBytes += len;
+				mode = Mode.SPILL;
+			}
+		}
+		switch (mode) {
+			case TEE: {
+				boolean ok = false;
+				try (TeeInputStream tee = new TeeInputStream(payload.openStream(), sink)) {
+					Payload teePayload = Payloads.newInputStreamPayload(tee);
+					teePayload.setContentMetadata(payload.getContentMetadata());
+					MultipartPart part = uploader.apply(teePayload);
+					ok = !tee.failed && len != null && tee.count == len;
+					return part;
+				} finally {
+					doneFeeding(ok);
+				}
+			}
+			case SPILL: {
+				ByteSinkSource bss;
+				try {
+					if (len > 8192) {
+						bss = new FileByteSinkSource(File.createTempFile("jortage-proxy-", ".dat"), true);
+					} else {
+						bss = new MemoryByteSinkSource();
+					}
+				} catch (IOException | RuntimeException e) {
+					// nowhere to put it; we can't hash this upload, but it can still go through
+					e.printStackTrace();
+					synchronized (this) {
+						spilledParts--;
+						spilledBytes -= len;
+						poison();
+					}
+					return uploader.apply(payload);
+				}
+				MultipartPart part;
+				long written;
+				try {
+					try (InputStream in = payload.openStream()) {
+						written = bss.getSink().writeFrom(in);
+					}
+					Payload spilledPayload = Payloads.newByteSourcePayload(bss.getSource());
+					spilledPayload.setContentMetadata(payload.getContentMetadata());
+					part = uploader.apply(spilledPayload);
+				} catch (IOException | RuntimeException | Error e) {
+					bss.close();
+					synchronized (this) {
+						// nothing was fed, so the client is free to try again
+						seen.remove(partNumber);
+						spilledParts--;
+						spilledBytes -= len;
+					}
+					throw e;
+				}
+				synchronized (this) {
+					if (poisoned) {
+						bss.close();
+					} else if (written != len) {
+						bss.close();
+						spilledParts--;
+						spilledBytes -= len;
+						poison();
+					} else {
+						spilled.put(partNumber, new Spill(bss, len));
+						drain();
+					}
+				}
+				return part;
+			}
+			default:
+				return uploader.apply(payload);
+		}
+	}
+
+	/**
+	 * Finish hashing, assuming the upload is being completed with {@code parts}.
+	 * @return the hash and size of the reprocessed upload, or null if we don't know it and the
+	 * 		caller needs to find out the slow way
+	 */
+	public synchronized Result finish(List<MultipartPart> parts) {
+		if (result != null) return result;
+		// the drainer may still be catching up on parts that arrived out of order
+		while (feeding && !poisoned) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		if (poisoned || !spilled.isEmpty() || parts.size() != nextPart-1) return null;
+		for (int i = 0; i < parts.size(); i++) {
+			if (parts.get(i).partNumber() != i+1) return null;
+		}
+		if (thread == null) return null;
+		closeSink();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		if (error != null) {
+			error.printStackTrace();
+			poisoned = true;
+			return null;
+		}
+		result = new Result(hash, counter.getCount());
+		return result;
+	}
+
+	/**
+	 * Give up on this upload and release everything associated with it.
+	 */
+	public synchronized void close() {
+		poison();
+	}
+
+	/**
+	 * Set up the pipe and the thread hashing what comes out of it, if that hasn't happened yet.
+	 * @return false if that failed, in which case we've been poisoned
+	 */
+	private boolean startHasher() {
+		if (thread != null) return true;
+		Pipe pipe;
+		try {
+			pipe = Pipe.open();
+		} catch (IOException e) {
+			e.printStackTrace();
+			poison();
+			return false;
+		}
+		sink = Channels.newOutputStream(pipe.sink());
+		// PngSurgeon closes its input when it's done; the pipe needs to stay open so we can drain it
+		InputStream source = new FilterInputStream(Channels.newInputStream(pipe.source())) {
+			@Override
+			public void close() {}
+		};
+		thread = new Thread(() -> {
+			try {
+				try {
+					hash = FileReprocessor.reprocessAndHash(source, counter);
+				} finally {
+					// reprocess can stop early (e.g. at a PNG's IEND); keep reading so writers don't block forever
+					source.transferTo(OutputStream.nullOutputStream());
+				}
+			} catch (Throwable t) {
+				error = t;
+			}
+		}, "Multipart hasher");
+		thread.setDaemon(true);
+		thread.start();
+		return true;
+	}
+
+	/**
+	 * If the next part is waiting in a spill, hand it to the drainer. Writing to the pipe blocks
+	 * on the hasher, so it can't be done here under the lock.
+	 */
+	private void drain() {
+		if (poisoned || feeding || !spilled.containsKey(nextPart) || !startHasher()) return;
+		Spill spill = spilled.remove(nextPart);
+		feeding = true;
+		drainer.execute(() -> {
+			boolean ok = false;
+			try (ByteSinkSource bss = spill.bss) {
+				bss.getSource().copyTo(sink);
+				ok = true;
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				synchronized (this) {
+					spilledParts--;
+					spilledBytes -= spill.size;
+				}
+				doneFeeding(ok);
+			}
+		});
+	}
+
+	private synchronized void doneFeeding(boolean ok) {
+		feeding = false;
+		if (poisoned) {
+			closeSink();
+		} else if (ok) {
+			nextPart++;
+			drain();
+		} else {
+			poison();
+		}
+		notifyAll();
+	}
+
+	private void poison() {
+		poisoned = true;
+		for (Spill spill : spilled.values()) {
+			spilledParts--;
+			spilledBytes -= spill.size;
+			spill.bss.close();
+		}
+		spilled.clear();
+		// if someone's in the middle of teeing into the pipe, they'll close it when they're done
+		if (!feeding) closeSink();
+	}
+
+	private void closeSink() {
+		if (sinkClosed) return;
+		sinkClosed = true;
+		if (sink == null) return;
+		try {
+			sink.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static final class TeeInputStream extends FilterInputStream {
+		private final OutputStream out;
+		private long count;
+		private boolean failed;
+
+		private TeeInputStream(InputStream in, OutputStream out) {
+			super(in);
+			this.out = out;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) tee(new byte[] { (byte)b }, 0, 1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) tee(b, off, read);
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// skipped bytes would never make it into the hash
+			failed = true;
+			return super.skip(n);
+		}
+
+		private void tee(byte[] b, int off, int len) {
+			if (failed) return;
+			try {
+				out.write(b, off, len);
+				count += len;
+			} catch (IOException e) {
+				// the upload itself is still fine, we just won't know its hash
+				failed = true;
+			}
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,357 @@
+package com.jortage.poolmgr;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.domain.StorageType;
+import org.jclouds.blobstore.options.ListContainerOptions;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Finds (and optionally deletes) objects in the backing bucket that nothing refers to anymore:
+ * blobs whose upload failed after they were stored, or whose removal raced with something, and
+ * leftover multipart and provisional upload temporaries.
+ * <p>
+ * The bucket is split into 16 partitions by the first hex digit of the hash, same as
+ * {@link Poolmgr#hashToPath}, and they're swept in parallel. Each partition streams the
+ * backend's listing (which comes back in hash order, thanks to the path layout) and merges it
+ * against a keyset scan of refcounts over the same range, so memory use doesn't depend on the
+ * size of the bucket. Anything modified within the grace period is left alone, as it might
+ * belong to an upload that hasn't finished yet.
+ * <p>
+ * Runs every {@code sweep.intervalHours} if that's set, or once from the command line with
+ * {@code sweep [--delete]}.
+ */
+public final class OrphanSweeper {
+
+	private static final String HEX = "0123456789abcdef";
+	private static final CharMatcher HEX_MATCHER = CharMatcher.anyOf(HEX);
+	private static final int PAGE_SIZE = 1000;
+
+	private static final AtomicBoolean running = new AtomicBoolean();
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setNameFormat("Sweep scheduler").setDaemon(true).build());
+
+	private final BlobStore store;
+	private final String bucket;
+	private final DataSource dataSource;
+	private final boolean delete;
+	private final long cutoff;
+	private final int threads;
+
+	private final LongAdder scanned = new LongAdder();
+	private final LongAdder orphans = new LongAdder();
+	private final LongAdder orphanBytes = new LongAdder();
+	private final LongAdder tooNew = new LongAdder();
+	private final LongAdder unrecognized = new LongAdder();
+	private final LongAdder deleted = new LongAdder();
+	private final LongAdder aborted = new LongAdder();
+
+	public OrphanSweeper(BlobStore store, String bucket, DataSource dataSource, boolean delete, long graceMillis, int threads) {
+		this.store = store;
+		this.bucket = bucket;
+		this.dataSource = dataSource;
+		this.delete = delete;
+		this.cutoff = System.currentTimeMillis()-graceMillis;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Start checking once an hour whether it's time for a scheduled sweep.
+	 */
+	public static void schedule() {
+		long[] lastRun = { System.currentTimeMillis() };
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				Poolmgr.reloadConfigIfChanged();
+				int interval = Poolmgr.sweepIntervalHours;
+				if (interval <= 0) return;
+				// nothing in the pool is supposed to change during maintenance; try again next hour
+				if (Poolmgr.readOnly) return;
+				if (System.currentTimeMillis()-lastRun[0] < TimeUnit.HOURS.toMillis(interval)) return;
+				lastRun[0] = System.currentTimeMillis();
+				fromConfig().run();
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}, 1, 1, TimeUnit.HOURS);
+	}
+
+	public static OrphanSweeper fromConfig() {
+		return fromConfig(Poolmgr.sweepDelete);
+	}
+
+	public static OrphanSweeper fromConfig(boolean delete) {
+		return new OrphanSweeper(Poolmgr.backingBlobStore, Poolmgr.bucket, Poolmgr.dataSource, delete,
+				TimeUnit.HOURS.toMillis(Poolmgr.sweepGraceHours), Poolmgr.sweepThreads);
+	}
+
+	public void run() {
+		if (!running.compareAndSet(false, true)) {
+			System.err.println("Ignoring sweep, one is already in progress");
+			return;
+		}
+		Stopwatch sw = Stopwatch.createStarted();
+		ExecutorService pool = Executors.newFixedThreadPool(threads,
+				new ThreadFactoryBuilder().setNameFormat("Sweeper #%d").setDaemon(true).build());
+		try {
+			System.err.println("Sweeping "+bucket+" for orphans older than "+new Date(cutoff)+(delete ? "" : " (report only)"));
+			List<Future<?>> futures = Lists.newArrayList();
+			for (int i = 0; i < 16; i++) {
+				int partition = i;
+				futures.add(pool.submit(() -> sweepPartition(partition)));
+			}
+			futures.add(pool.submit(() -> sweepTemporaries("multitmp/")));
+			futures.add(pool.submit(() -> sweepTemporaries("provisional/")));
+			futures.add(pool.submit(this::sweepMultipartUploads));
+			boolean ok = true;
+			for (Future<?> f : futures) {
+				try {
+					f.get();
+				} catch (Exception e) {
+					e.printStackTrace();
+					ok = false;
+				}
+			}
+			System.err.println("Sweep "+(ok ? "finished" : "finished with errors")+" in "+sw+": "
+					+scanned.sum()+" scanned, "+orphans.sum()+" orphaned ("+(orphanBytes.sum()/1024/1024)+" MiB), "
+					+deleted.sum()+" deleted, "+aborted.sum()+" uploads aborted, "
+					+tooNew.sum()+" too new to judge, "+unrecognized.sum()+" unrecognized");
+		} finally {
+			pool.shutdownNow();
+			running.set(false);
+		}
+	}
+
+	private void sweepPartition(int partition) {
+		String prefix = "blobs/"+HEX.charAt(partition)+"/";
+		// one byte is enough to bound the range; a full hash always sorts after its own prefix
+		byte[] lower = { (byte)(partition << 4) };
+		byte[] upper = partition == 15 ? null : new byte[] { (byte)((partition+1) << 4) };
+		ReferencedCursor referenced = new ReferencedCursor(lower, upper);
+		List<StorageMetadata> candidates = Lists.newArrayList();
+		String marker = null;
+		do {
+			ListContainerOptions opts = ListContainerOptions.Builder.prefix(prefix).recursive().maxResults(PAGE_SIZE);
+			if (marker != null) opts.afterMarker(marker);
+			PageSet<? extends StorageMetadata> page = store.list(bucket, opts);
+			for (StorageMetadata sm : page) {
+				if (sm.getType() != StorageType.BLOB) continue;
+				scanned.increment();
+				HashCode hash = parseBlobPath(sm.getName());
+				if (hash == null) {
+					unrecognized.increment();
+					continue;
+				}
+				if (referenced.contains(hash)) continue;
+				if (isTooNew(sm)) {
+					tooNew.increment();
+					continue;
+				}
+				candidates.add(sm);
+				if (candidates.size() >= PAGE_SIZE) {
+					removeOrphanedBlobs(candidates);
+					candidates.clear();
+				}
+			}
+			marker = page.getNextMarker();
+		} while (marker != null);
+		removeOrphanedBlobs(candidates);
+	}
+
+	private void removeOrphanedBlobs(List<StorageMetadata> candidates) {
+		if (candidates.isEmpty()) return;
+		if (!delete) {
+			for (StorageMetadata sm : candidates) {
+				System.err.println("Orphan: "+sm.getName()+" ("+sm.getSize()+" bytes, last modified "+sm.getLastModified()+")");
+				countOrphan(sm);
+			}
+			return;
+		}
+		Map<HashCode, StorageMetadata> byHash = Maps.newLinkedHashMap();
+		for (StorageMetadata sm : candidates) {
+			byHash.put(parseBlobPath(sm.getName()), sm);
+		}
+		// the listing is a snapshot; make sure nothing's been mapped to these since, and keep it
+		// that way until they're gone
+		Queries.forgetUnreferenced(dataSource, byHash.keySet(), true, (confirmed) -> {
+			List<String> paths = Lists.newArrayListWithCapacity(confirmed.size());
+			for (HashCode hash : confirmed) {
+				StorageMetadata sm = byHash.get(hash);
+				// forget it first, so nothing is told it exists while it's being deleted
+				KnownBlobs.invalidate(hash);
+				paths.add(sm.getName());
+				countOrphan(sm);
+			}
+			try {
+				store.removeBlobs(bucket, paths);
+				deleted.add(paths.size());
+				return confirmed;
+			} finally {
+				// and again, in case a lookup put it back before the delete landed
+				for (HashCode hash : confirmed) {
+					KnownBlobs.invalidate(hash);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Temporaries are never referenced by anything once their upload is done with them, so
+	 * anything past the grace period is left over from an upload that crashed or was abandoned.
+	 */
+	private void sweepTemporaries(String prefix) {
+		List<String> paths = Lists.newArrayList();
+		String marker = null;
+		do {
+			ListContainerOptions opts = ListContainerOptions.Builder.prefix(prefix).recursive().maxResults(PAGE_SIZE);
+			if (marker != null) opts.afterMarker(marker);
+			PageSet<? extends StorageMetadata> page = store.list(bucket, opts);
+			for (StorageMetadata sm : page) {
+				if (sm.getType() != StorageType.BLOB) continue;
+				scanned.increment();
+				if (isTooNew(sm)) {
+					tooNew.increment();
+					continue;
+				}
+				countOrphan(sm);
+				if (delete) {
+					paths.add(sm.getName());
+					if (paths.size() >= PAGE_SIZE) {
+						removeTemporaries(paths);
+						paths.clear();
+					}
+				} else {
+					System.err.println("Orphan: "+sm.getName()+" ("+sm.getSize()+" bytes, last modified "+sm.getLastModified()+")");
+				}
+			}
+			marker = page.getNextMarker();
+		} while (marker != null);
+		removeTemporaries(paths);
+	}
+
+	private void removeTemporaries(List<String> paths) {
+		if (paths.isEmpty()) return;
+		store.removeBlobs(bucket, paths);
+		deleted.add(paths.size());
+		Queries.UnitOfWork uow = Queries.begin(dataSource);
+		for (String path : paths) {
+			if (path.startsWith("multitmp/")) uow.removeMultipart(path);
+		}
+		uow.commit();
+	}
+
+	private void sweepMultipartUploads() {
+		for (MultipartUpload mpu : store.listMultipartUploads(bucket)) {
+			long started = parseTemporaryTimestamp(mpu.blobName());
+			// we can't tell how old anything else is, so leave it be
+			if (started == -1 || started > cutoff) continue;
+			if (delete) {
+				store.abortMultipartUpload(mpu);
+				if (mpu.blobName().startsWith("multitmp/")) {
+					Queries.removeMultipart(dataSource, mpu.blobName());
+				}
+				aborted.increment();
+			} else {
+				System.err.println("Stale multipart upload: "+mpu.blobName()+" (started "+new Date(started)+")");
+			}
+		}
+	}
+
+	private boolean isTooNew(StorageMetadata sm) {
+		Date lastModified = sm.getLastModified();
+		return lastModified == null || lastModified.getTime() > cutoff;
+	}
+
+	private void countOrphan(StorageMetadata sm) {
+		orphans.increment();
+		if (sm.getSize() != null) orphanBytes.add(sm.getSize());
+	}
+
+	/**
+	 * @return the hash a blob path refers to, or null if it isn't a path {@link Poolmgr#hashToPath}
+	 * 		would have produced
+	 */
+	private static HashCode parseBlobPath(String path) {
+		String hash = path.substring(path.lastIndexOf('/')+1);
+		if (hash.length() != 128 || !HEX_MATCHER.matchesAllOf(hash)) return null;
+		if (!Poolmgr.hashToPath(hash).equals(path)) return null;
+		return HashCode.fromString(hash);
+	}
+
+	/**
+	 * Temporary names end with {@code <millis>-<nanos>}; see initiateMultipartUpload and
+	 * ProvisionalUpload.
+	 * @return when the temporary was created, or -1 if it isn't one of ours
+	 */
+	private static long parseTemporaryTimestamp(String name) {
+		if (!name.startsWith("multitmp/") && !name.startsWith("provisional/")) return -1;
+		int nanosDash = name.lastIndexOf('-');
+		if (nanosDash == -1) return -1;
+		int millisStart = Math.max(name.lastIndexOf('-', nanosDash-1), name.lastIndexOf('/', nanosDash-1))+1;
+		try {
+			return Long.parseLong(name.substring(millisStart, nanosDash));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Walks refcounts in hash order a page at a time, in step with a listing of the backend.
+	 */
+	private final class ReferencedCursor {
+		private final byte[] upper;
+		private byte[] after;
+		private List<HashCode> page = Lists.newArrayList();
+		private int idx;
+		private boolean exhausted;
+
+		private ReferencedCursor(byte[] lower, byte[] upper) {
+			this.after = lower;
+			this.upper = upper;
+		}
+
+		/**
+		 * @param hash must not sort before any hash previously passed in
+		 */
+		private boolean contains(HashCode hash) {
+			byte[] bys = hash.asBytes();
+			while (true) {
+				if (idx >= page.size()) {
+					if (exhausted) return false;
+					page = Queries.getReferencedHashes(dataSource, after, upper, PAGE_SIZE);
+					idx = 0;
+					if (page.size() < PAGE_SIZE) exhausted = true;
+					if (page.isEmpty()) return false;
+					after = page.get(page.size()-1).asBytes();
+				}
+				int cmp = UnsignedBytes.lexicographicalComparator().compare(page.get(idx).asBytes(), bys);
+				if (cmp == 0) return true;
+				if (cmp > 0) return false;
+				idx++;
+			}
+		}
+	}
+
+}
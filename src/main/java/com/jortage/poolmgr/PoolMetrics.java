@@ -0,0 +1,53 @@
+package com.jortage.poolmgr;
+
+import javax.sql.DataSource;
+
+import com.jortage.poolmgr.metrics.Counter;
+import com.jortage.poolmgr.metrics.Metrics;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+/**
+ * Metrics that are shared between the S3 and Rivet sides, and gauges over state that lives
+ * elsewhere.
+ */
+public final class PoolMetrics {
+
+	public static final Counter UPLOADS_NEW = Metrics.counter("poolmgr_uploads_total",
+			"Uploads handled, by whether they were new to the pool or deduplicated against an existing blob", "result", "new");
+	public static final Counter UPLOADS_DEDUPLICATED = Metrics.counter("poolmgr_uploads_total",
+			"Uploads handled, by whether they were new to the pool or deduplicated against an existing blob", "result", "deduplicated");
+	public static final Counter BYTES_HASHED = Metrics.counter("poolmgr_bytes_hashed_total",
+			"Bytes read and hashed from uploads");
+
+	public static void registerGauges() {
+		Metrics.gauge("poolmgr_db_connections", "Database pool connections, by state", () -> hikari().getActiveConnections(), "state", "active");
+		Metrics.gauge("poolmgr_db_connections", "Database pool connections, by state", () -> hikari().getIdleConnections(), "state", "idle");
+		Metrics.gauge("poolmgr_db_connections", "Database pool connections, by state", () -> hikari().getTotalConnections(), "state", "total");
+		Metrics.gauge("poolmgr_db_threads_waiting", "Threads waiting for a database connection", () -> hikari().getThreadsAwaitingConnection());
+
+		Metrics.counter("poolmgr_cache_requests_total", "Cache lookups, by cache and result", () -> KnownBlobs.stats().hitCount(), "cache", "known_blobs", "result", "hit");
+		Metrics.counter("poolmgr_cache_requests_total", "Cache lookups, by cache and result", () -> KnownBlobs.stats().missCount(), "cache", "known_blobs", "result", "miss");
+		Metrics.counter("poolmgr_cache_requests_total", "Cache lookups, by cache and result", () -> Queries.mapCacheStats().hitCount(), "cache", "name_map", "result", "hit");
+		Metrics.counter("poolmgr_cache_requests_total", "Cache lookups, by cache and result", () -> Queries.mapCacheStats().missCount(), "cache", "name_map", "result", "miss");
+
+		Metrics.gauge("poolmgr_backup_running", "Whether a backup run is in progress", () -> BackupEngine.isRunning() ? 1 : 0);
+		Metrics.gauge("poolmgr_backup_backlog", "Blobs waiting to be backed up, as of the last backup run", BackupEngine::getBacklog);
+		Metrics.counter("poolmgr_backup_items_total", "Blobs backed up", BackupEngine::getItemsDone);
+		Metrics.counter("poolmgr_backup_bytes_total", "Bytes backed up", BackupEngine::getBytesDone);
+		Metrics.counter("poolmgr_backup_failures_total", "Blobs that failed to back up", BackupEngine::getFailures);
+		Metrics.counter("poolmgr_backup_server_side_copies_total", "Blobs backed up with a server-side copy", BackupEngine::getServerSideCopies);
+	}
+
+	private static HikariPoolMXBean hikari() {
+		// looked up each time, since a config reload swaps out the pool
+		DataSource ds = Poolmgr.dataSource;
+		HikariPoolMXBean bean = ((HikariDataSource)ds).getHikariPoolMXBean();
+		if (bean == null) throw new IllegalStateException("Pool not started");
+		return bean;
+	}
+
+	private PoolMetrics() {}
+
+}
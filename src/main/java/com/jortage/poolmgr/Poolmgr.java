@@ -10,6 +10,9 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.sql.DataSource;
 
@@ -23,26 +26,23 @@ import org.gaul.s3proxy.S3Proxy;
 import org.jclouds.ContextBuilder;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.BlobStoreContext;
-import org.jclouds.blobstore.domain.Blob;
-import org.jclouds.blobstore.domain.BlobAccess;
-import org.jclouds.blobstore.options.PutOptions;
 import org.jclouds.filesystem.reference.FilesystemConstants;
 import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
 
 import com.jortage.poolmgr.http.OuterHandler;
 import com.jortage.poolmgr.http.RedirHandler;
+import com.jortage.poolmgr.metrics.MetricsHandler;
 import com.jortage.poolmgr.rivet.RivetHandler;
+import com.jortage.poolmgr.util.AdaptiveRateLimiter;
 import com.zaxxer.hikari.HikariDataSource;
 
 import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
 import com.google.common.base.Stopwatch;
-import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Table;
 import com.google.common.escape.Escaper;
-import com.google.common.hash.HashCode;
 import com.google.common.net.UrlEscapers;
 
 import blue.endless.jankson.Jankson;
@@ -60,12 +60,26 @@ public class Poolmgr {
 	public static DataSource dataSource;
 	public static Map<String, String> users;
 	public static volatile boolean readOnly = false;
-	private static boolean backingUp = false;
 	private static boolean rivetEnabled;
 	private static boolean rivetState;
 	public static boolean useNewUrls;
+	public static boolean streamingUploads;
+	public static int backupWorkers;
+	public static int backupIntervalMinutes;
+	public static boolean backupServerSideCopy;
+	public static int sweepIntervalHours;
+	public static int sweepGraceHours;
+	public static int sweepThreads;
+	public static boolean sweepDelete;
+	public static int rivetMaxFetches;
+	public static int rivetFreshHours;
+	public static int rivetCacheSize;
+	public static int rivetBatchConcurrency;
+	public static int rivetJobWorkers;
+	public static int rivetJobMaxAttempts;
 	
-	public static final Table<String, String, Object> provisionalMaps = HashBasedTable.create();
+	// "identity/name" -> completed when the in-flight upload of that name finishes
+	public static final ConcurrentMap<String, CompletableFuture<Void>> provisionalMaps = new ConcurrentHashMap<>();
 
 	public static void main(String[] args) throws Exception {
 		try {
@@ -78,6 +92,17 @@ public class Poolmgr {
 					
 			Stopwatch initSw = Stopwatch.createStarted();
 			reloadConfig();
+
+			if (args.length > 0 && args[0].equals("sweep")) {
+				boolean delete = args.length > 1 && args[1].equals("--delete");
+				if (delete) {
+					// a running instance remembers which blobs exist, and won't know we deleted them
+					System.err.println("WARNING: Only sweep with --delete while jortage-proxy isn't running, or use sweep.intervalHours instead.");
+				}
+				OrphanSweeper.fromConfig(delete).run();
+				System.exit(0);
+				return;
+			}
 	
 			System.err.print("Starting S3 server... ");
 			System.err.flush();
@@ -141,12 +166,24 @@ public class Poolmgr {
 				System.err.println("Not starting Rivet server.");
 			}
 			
+			System.err.print("Starting metrics server... ");
+			System.err.flush();
+			PoolMetrics.registerGauges();
+			Server metrics = new Server(pool);
+			ServerConnector metricsConn = new ServerConnector(metrics);
+			metricsConn.setHost("localhost");
+			metricsConn.setPort(23281);
+			metrics.addConnector(metricsConn);
+			metrics.setHandler(new OuterHandler(new MetricsHandler()));
+			metrics.start();
+			System.err.println("ready on http://localhost:23281");
+			
 			System.err.print("Registering SIGALRM handler for backups... ");
 			System.err.flush();
 			try {
 				Signal.handle(new Signal("ALRM"), (sig) -> {
 					reloadConfigIfChanged();
-					if (backingUp) {
+					if (BackupEngine.isRunning()) {
 						System.err.println("Ignoring SIGALRM, backup already in progress");
 						return;
 					}
@@ -154,50 +191,14 @@ public class Poolmgr {
 						System.err.println("Ignoring SIGALRM, nowhere to backup to");
 						return;
 					}
-					new Thread(() -> {
-						int count = 0;
-						Stopwatch sw = Stopwatch.createStarted();
-						try (Connection c = dataSource.getConnection()) {
-							backingUp = true;
-							try (PreparedStatement delete = c.prepareStatement("DELETE FROM `pending_backup` WHERE `hash` = ?;")) {
-								try (PreparedStatement ps = c.prepareStatement("SELECT `hash` FROM `pending_backup`;")) {
-									try (ResultSet rs = ps.executeQuery()) {
-										while (rs.next()) {
-											byte[] bys = rs.getBytes("hash");
-											String path = hashToPath(HashCode.fromBytes(bys).toString());
-											Blob src = backingBlobStore.getBlob(bucket, path);
-											if (src == null) {
-												Blob actualSrc = backingBackupBlobStore.getBlob(backupBucket, path);
-												if (actualSrc == null) {
-													System.err.println("Can't find blob "+path+" in source or destination?");
-													continue;
-												}  else {
-													System.err.println("Copying "+path+" from \"backup\" to current - this is a little odd");
-													backingBlobStore.putBlob(bucket, actualSrc, new PutOptions().setBlobAccess(BlobAccess.PUBLIC_READ));
-												}
-											} else {
-												backingBackupBlobStore.putBlob(backupBucket, src, new PutOptions().setBlobAccess(BlobAccess.PUBLIC_READ));
-											}
-											delete.setBytes(1, bys);
-											delete.executeUpdate();
-											count++;
-										}
-										System.err.println("Backup of "+count+" item"+s(count)+" successful in "+sw);
-									}
-								}
-							}
-						} catch (Exception e) {
-							e.printStackTrace();
-							System.err.println("Backup failed after "+count+" item"+s(count)+" in "+sw);
-						} finally {
-							backingUp = false;
-						}
-					}, "Backup thread").start();
+					BackupEngine.start();
 				});
 				System.err.println("done");
 			} catch (Exception e) {
 				System.err.println("failed");
 			}
+			BackupEngine.schedule();
+			OrphanSweeper.schedule();
 			System.err.println("This Poolmgr has Super Denim Powers. (Done in "+initSw+")");
 		} catch (Throwable t) {
 			System.err.println(" failed");
@@ -209,10 +210,6 @@ public class Poolmgr {
 //		if (System.currentTimeMillis()-configFileLastLoaded > 500 && configFile.lastModified() > configFileLastLoaded) reloadConfig();
 	}
 
-	private static String s(int i) {
-		return i == 1 ? "" : "s";
-	}
-
 	private static void reloadConfig() {
 		boolean reloading = dataSource != null;
 		try {
@@ -223,20 +220,40 @@ public class Poolmgr {
 			long configFileLastLoadedTmp = System.currentTimeMillis();
 			String bucketTmp = ((JsonPrimitive)configTmp.getObject("backend").get("bucket")).asString();
 			String publicHostTmp = ((JsonPrimitive)configTmp.getObject("backend").get("publicHost")).asString();
-			boolean rivetEnabledTmp = configTmp.recursiveGet(boolean.class, "rivet.enabled");
+			JsonObject rivet = MoreObjects.firstNonNull(configTmp.getObject("rivet"), new JsonObject());
+			boolean rivetEnabledTmp = MoreObjects.firstNonNull(rivet.get(boolean.class, "enabled"), false);
+			int rivetMaxFetchesTmp = (int)getDouble(rivet, "maxConcurrentFetches", 8);
+			int rivetFreshHoursTmp = (int)getDouble(rivet, "freshHours", 24);
+			int rivetCacheSizeTmp = (int)getDouble(rivet, "cacheSize", 16384);
+			int rivetBatchConcurrencyTmp = (int)getDouble(rivet, "batchConcurrency", 4);
+			int rivetJobWorkersTmp = (int)getDouble(rivet, "jobWorkers", 4);
+			int rivetJobMaxAttemptsTmp = (int)getDouble(rivet, "jobMaxAttempts", 5);
 			boolean readOnlyTmp = MoreObjects.firstNonNull(configTmp.get(boolean.class, "readOnly"), false);
 			boolean useNewUrlsTmp = MoreObjects.firstNonNull(configTmp.get(boolean.class, "useNewUrls"), false);
+			boolean streamingUploadsTmp = MoreObjects.firstNonNull(configTmp.get(boolean.class, "streamingUploads"), false);
+			JsonObject backup = MoreObjects.firstNonNull(configTmp.getObject("backup"), new JsonObject());
+			int backupWorkersTmp = (int)getDouble(backup, "workers", 8);
+			int backupIntervalMinutesTmp = (int)getDouble(backup, "intervalMinutes", 0);
+			JsonObject sweep = MoreObjects.firstNonNull(configTmp.getObject("sweep"), new JsonObject());
+			int sweepIntervalHoursTmp = (int)getDouble(sweep, "intervalHours", 0);
+			int sweepGraceHoursTmp = (int)getDouble(sweep, "graceHours", 24);
+			int sweepThreadsTmp = (int)getDouble(sweep, "threads", 4);
+			boolean sweepDeleteTmp = MoreObjects.firstNonNull(sweep.get(boolean.class, "delete"), false);
 			System.err.print(prelude+"Constructing blob stores...");
 			System.err.flush();
 			BlobStore backingBlobStoreTmp = createBlobStore(configTmp.getObject("backend"));
 			String backupBucketTmp;
 			BlobStore backingBackupBlobStoreTmp;
+			boolean backupServerSideCopyTmp;
 			if (configTmp.containsKey("backupBackend")) {
 				backupBucketTmp = ((JsonPrimitive)configTmp.getObject("backupBackend").get("bucket")).asString();
 				backingBackupBlobStoreTmp = createBlobStore(configTmp.getObject("backupBackend"));
+				backupServerSideCopyTmp = MoreObjects.firstNonNull(backup.get(Boolean.class, "serverSideCopy"),
+						isSameAccount(configTmp.getObject("backend"), configTmp.getObject("backupBackend")));
 			} else {
 				backupBucketTmp = null;
 				backingBackupBlobStoreTmp = null;
+				backupServerSideCopyTmp = false;
 			}
 			JsonObject sql = configTmp.getObject("mysql");
 			String sqlHost = ((JsonPrimitive)sql.get("host")).asString();
@@ -290,6 +307,43 @@ public class Poolmgr {
 						"  `hash` BINARY(64) NOT NULL,\n" +
 						"  PRIMARY KEY (`hash`)\n" +
 						") ROW_FORMAT=COMPRESSED;");
+				execOneshot(c, "CREATE TABLE IF NOT EXISTS `refcounts` (\n" +
+						"  `hash` BINARY(64) NOT NULL,\n" +
+						"  `refs` BIGINT NOT NULL,\n" +
+						"  PRIMARY KEY (`hash`)\n" +
+						") ROW_FORMAT=COMPRESSED;");
+				execOneshot(c, "CREATE TABLE IF NOT EXISTS `origin_validators` (\n" +
+						"  `url` VARCHAR(255) NOT NULL,\n" +
+						"  `etag` VARCHAR(255) NULL,\n" +
+						"  `last_modified` VARCHAR(64) NULL,\n" +
+						"  `hash` BINARY(64) NOT NULL,\n" +
+						"  `fetched_at` BIGINT UNSIGNED NOT NULL DEFAULT 0,\n" +
+						"  PRIMARY KEY (`url`)\n" +
+						") ROW_FORMAT=COMPRESSED;");
+				execOneshot(c, "CREATE TABLE IF NOT EXISTS `rivet_jobs` (\n" +
+						"  `id` BIGINT UNSIGNED NOT NULL AUTO_INCREMENT,\n" +
+						"  `identity` VARCHAR(255) NOT NULL,\n" +
+						"  `source_url` TEXT NOT NULL,\n" +
+						"  `destination_path` TEXT NOT NULL,\n" +
+						"  `callback_url` TEXT NULL,\n" +
+						"  `state` VARCHAR(16) NOT NULL,\n" +
+						"  `attempts` INT UNSIGNED NOT NULL,\n" +
+						"  `next_attempt` BIGINT UNSIGNED NOT NULL,\n" +
+						"  `updated` BIGINT UNSIGNED NOT NULL,\n" +
+						"  `result` TEXT NULL,\n" +
+						"  PRIMARY KEY (`id`),\n" +
+						"  INDEX `due` (`state`, `next_attempt`)\n" +
+						") ROW_FORMAT=COMPRESSED;");
+				// refcounts was added after the fact; fill it in from name_map the first time around
+				try (PreparedStatement ps = c.prepareStatement("SELECT EXISTS(SELECT 1 FROM `refcounts`) AS has_refs, EXISTS(SELECT 1 FROM `name_map`) AS has_maps;")) {
+					try (ResultSet rs = ps.executeQuery()) {
+						if (rs.first() && !rs.getBoolean("has_refs") && rs.getBoolean("has_maps")) {
+							System.err.print(prelude+"Backfilling reference counts...");
+							System.err.flush();
+							execOneshot(c, "INSERT INTO `refcounts` (`hash`, `refs`) SELECT `hash`, COUNT(1) FROM `name_map` GROUP BY `hash`;");
+						}
+					}
+				}
 			}
 			ImmutableMap.Builder<String, String> usersTmp = ImmutableMap.builder();
 			for (Map.Entry<String, JsonElement> en : configTmp.getObject("users").entrySet()) {
@@ -307,7 +361,21 @@ public class Poolmgr {
 			backingBackupBlobStore = backingBackupBlobStoreTmp;
 			dataSource = dataSourceTmp;
 			rivetEnabled = rivetEnabledTmp;
+			rivetMaxFetches = rivetMaxFetchesTmp;
+			rivetFreshHours = rivetFreshHoursTmp;
+			rivetCacheSize = rivetCacheSizeTmp;
+			rivetBatchConcurrency = rivetBatchConcurrencyTmp;
+			rivetJobWorkers = rivetJobWorkersTmp;
+			rivetJobMaxAttempts = rivetJobMaxAttemptsTmp;
 			useNewUrls = useNewUrlsTmp;
+			streamingUploads = streamingUploadsTmp;
+			backupWorkers = backupWorkersTmp;
+			backupIntervalMinutes = backupIntervalMinutesTmp;
+			backupServerSideCopy = backupServerSideCopyTmp;
+			sweepIntervalHours = sweepIntervalHoursTmp;
+			sweepGraceHours = sweepGraceHoursTmp;
+			sweepThreads = sweepThreadsTmp;
+			sweepDelete = sweepDeleteTmp;
 			if (rivetState != rivetEnabled && reloading) {
 				System.err.println("WARNING: Cannot hot-"+(rivetEnabled ? "enable" : "disable")+" Rivet. jortage-proxy must be restarted for this change to take effect.");
 			}
@@ -330,12 +398,36 @@ public class Poolmgr {
 	private static BlobStore createBlobStore(JsonObject obj) {
 		String protocol = ((JsonPrimitive)obj.get("protocol")).asString();
 		if ("s3".equals(protocol)) protocol = "aws-s3";
-		return ContextBuilder.newBuilder(protocol)
+		String endpoint = ((JsonPrimitive)obj.get("endpoint")).asString();
+		BlobStore blobStore = ContextBuilder.newBuilder(protocol)
 			.credentials(((JsonPrimitive)obj.get("accessKeyId")).asString(), ((JsonPrimitive)obj.get("secretAccessKey")).asString())
 			.modules(ImmutableList.of(new SLF4JLoggingModule()))
-			.endpoint(((JsonPrimitive)obj.get("endpoint")).asString())
+			.endpoint(endpoint)
 			.build(BlobStoreContext.class)
 			.getBlobStore();
+		JsonObject rateLimit = MoreObjects.firstNonNull(obj.getObject("rateLimit"), new JsonObject());
+		AdaptiveRateLimiter limiter = new AdaptiveRateLimiter(
+				getDouble(rateLimit, "initial", 50),
+				getDouble(rateLimit, "min", 1),
+				getDouble(rateLimit, "max", 200));
+		return new RateLimitedBlobStore(blobStore, endpoint, limiter);
+	}
+
+	/**
+	 * @return true if the two backends are the same account on the same provider, meaning objects
+	 * 		can be copied from one bucket to the other without going through us
+	 */
+	private static boolean isSameAccount(JsonObject a, JsonObject b) {
+		for (String key : new String[] { "protocol", "endpoint", "accessKeyId", "secretAccessKey" }) {
+			if (!Objects.equal(a.get(String.class, key), b.get(String.class, key))) return false;
+		}
+		return true;
+	}
+
+	private static double getDouble(JsonObject obj, String key, double def) {
+		JsonElement ele = obj.get(key);
+		if (ele == null) return def;
+		return ((Number)((JsonPrimitive)ele).getValue()).doubleValue();
 	}
 
 	private static void execOneshot(Connection c, String sql) throws SQLException {
@@ -344,6 +436,10 @@ public class Poolmgr {
 		}
 	}
 
+	public static String provisionalKey(String identity, String name) {
+		return identity+"/"+name;
+	}
+
 	public static String hashToPath(String hash) {
 		return "blobs/"+hash.substring(0, 1)+"/"+hash.substring(1, 4)+"/"+hash;
 	}
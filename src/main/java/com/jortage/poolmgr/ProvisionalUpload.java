@@ -0,0 +1,173 @@
+package com.jortage.poolmgr;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobAccess;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.MutableBlobMetadata;
+import org.jclouds.blobstore.domain.internal.MutableBlobMetadataImpl;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.io.ContentMetadataBuilder;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+/**
+ * Streams data straight into the backing store under a provisional name, for when the real
+ * (content-addressed) name isn't known until the last byte has gone by.
+ * <p>
+ * Nothing is sent until a full part's worth of data has been written, so small files never
+ * leave memory and get put directly at their final path by {@link #promote}. Anything bigger
+ * becomes a multipart upload under {@code provisional/}, which is completed and server-side
+ * copied into place on promotion. If the caller decides it doesn't want the data after all (it
+ * was already in the pool), {@link #abort} throws it away without ever completing the upload.
+ * <p>
+ * {@link #close} does <i>not</i> abort; FileReprocessor likes to close the streams it's given.
+ */
+public class ProvisionalUpload extends OutputStream {
+
+	private final BlobStore store;
+	private final String bucket;
+	private final String name;
+	private final String contentType;
+	private final Map<String, String> userMetadata;
+	private final int partSize;
+
+	private byte[] buf = new byte[8192];
+	private int bufLen;
+	private long size;
+	private MultipartUpload mpu;
+	private final List<MultipartPart> parts = Lists.newArrayList();
+	private boolean done;
+
+	public ProvisionalUpload(BlobStore store, String bucket, String contentType, Map<String, String> userMetadata) {
+		this.store = store;
+		this.bucket = bucket;
+		this.name = "provisional/"+System.currentTimeMillis()+"-"+System.nanoTime();
+		this.contentType = contentType;
+		this.userMetadata = userMetadata == null ? ImmutableMap.of() : ImmutableMap.copyOf(userMetadata);
+		this.partSize = (int)Math.min(store.getMinimumMultipartPartSize(), Integer.MAX_VALUE-8);
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		ensureCapacity(bufLen+1);
+		buf[bufLen++] = (byte)b;
+		size++;
+		if (bufLen == partSize) uploadPart();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		while (len > 0) {
+			int chunk = Math.min(len, partSize-bufLen);
+			ensureCapacity(bufLen+chunk);
+			System.arraycopy(b, off, buf, bufLen, chunk);
+			bufLen += chunk;
+			size += chunk;
+			off += chunk;
+			len -= chunk;
+			if (bufLen == partSize) uploadPart();
+		}
+	}
+
+	/**
+	 * Finish the upload and move it to its final resting place at {@code path}.
+	 * @return the ETag of the promoted blob
+	 */
+	public String promote(String path) {
+		ensureOpen();
+		done = true;
+		if (mpu == null) {
+			// never left memory, so just put it where it belongs
+			Blob blob = store.blobBuilder(path)
+					.payload(Arrays.copyOf(buf, bufLen))
+					.contentType(contentType)
+					.userMetadata(userMetadata)
+					.build();
+			buf = null;
+			return store.putBlob(bucket, blob, new PutOptions().setBlobAccess(BlobAccess.PUBLIC_READ));
+		}
+		try {
+			if (bufLen > 0) uploadPart();
+			buf = null;
+			store.completeMultipartUpload(mpu, parts);
+		} catch (RuntimeException e) {
+			abortQuietly();
+			throw e;
+		}
+		try {
+			String etag = store.copyBlob(bucket, name, bucket, path, CopyOptions.builder()
+					.contentMetadata(ContentMetadataBuilder.create().contentType(contentType).build())
+					.userMetadata(userMetadata)
+					.build());
+			try {
+				store.setBlobAccess(bucket, path, BlobAccess.PUBLIC_READ);
+			} catch (UnsupportedOperationException ignore) {}
+			return etag;
+		} finally {
+			store.removeBlob(bucket, name);
+		}
+	}
+
+	/**
+	 * Throw away everything written so far. Does nothing if the upload was already promoted or
+	 * aborted, so it's safe to call from a finally block.
+	 */
+	public void abort() {
+		if (done) return;
+		done = true;
+		buf = null;
+		if (mpu != null) {
+			store.abortMultipartUpload(mpu);
+		}
+	}
+
+	private void abortQuietly() {
+		try {
+			store.abortMultipartUpload(mpu);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void uploadPart() {
+		if (mpu == null) {
+			MutableBlobMetadata mbm = new MutableBlobMetadataImpl();
+			mbm.setName(name);
+			mbm.getContentMetadata().setContentType(contentType);
+			mbm.setUserMetadata(userMetadata);
+			mpu = store.initiateMultipartUpload(bucket, mbm, new PutOptions().setBlobAccess(BlobAccess.PUBLIC_READ));
+		}
+		Payload payload = Payloads.newByteArrayPayload(bufLen == buf.length ? buf : Arrays.copyOf(buf, bufLen));
+		payload.getContentMetadata().setContentLength((long)bufLen);
+		parts.add(store.uploadMultipartPart(mpu, parts.size()+1, payload));
+		bufLen = 0;
+	}
+
+	private void ensureCapacity(int needed) {
+		if (needed <= buf.length) return;
+		buf = Arrays.copyOf(buf, (int)Math.min(Math.max((long)buf.length*2, needed), partSize));
+	}
+
+	private void ensureOpen() {
+		if (done) throw new IllegalStateException("Upload has already been promoted or aborted");
+	}
+
+}
@@ -4,15 +4,95 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
 import javax.sql.DataSource;
 
+import com.jortage.poolmgr.metrics.Histogram;
+import com.jortage.poolmgr.metrics.Metrics;
+
 import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
 
 public class Queries {
 
+	/**
+	 * Thrown by a map write when the hash being mapped isn't in the pool (anymore), so the caller
+	 * has to store the blob itself rather than dedupe onto it. Whatever the caller believed
+	 * (KnownBlobs, a HEAD) was out of date; only the refcounts row is authoritative.
+	 */
+	public static final class BlobMissingException extends IllegalStateException {
+		private static final long serialVersionUID = 1L;
+		public final HashCode hash;
+		private BlobMissingException(HashCode hash) {
+			super("Blob "+hash+" is not in the pool");
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * What Rivet got from a URL the last time it was fetched, and what the origin told it so the
+	 * next fetch can be conditional.
+	 */
+	public static final class OriginValidators {
+		/** null if the origin didn't send one */
+		public final String etag, lastModified;
+		public final HashCode hash;
+		/** when the origin last gave us (or confirmed) this hash, in millis */
+		public final long fetchedAt;
+		private OriginValidators(String etag, String lastModified, HashCode hash, long fetchedAt) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.hash = hash;
+			this.fetchedAt = fetchedAt;
+		}
+	}
+
+	/**
+	 * A Rivet retrieve that was queued to be done in the background.
+	 */
+	public static final class RivetJob {
+		public final long id;
+		public final String identity, sourceUrl, destinationPath;
+		/** null if the client will poll instead */
+		public final String callbackUrl;
+		/** QUEUED, RUNNING, DONE or FAILED */
+		public final String state;
+		public final int attempts;
+		/** the outcome of the last attempt as JSON, or null if there hasn't been one */
+		public final String result;
+		private RivetJob(ResultSet rs) throws SQLException {
+			this.id = rs.getLong("id");
+			this.identity = rs.getString("identity");
+			this.sourceUrl = rs.getString("source_url");
+			this.destinationPath = rs.getString("destination_path");
+			this.callbackUrl = rs.getString("callback_url");
+			this.state = rs.getString("state");
+			this.attempts = rs.getInt("attempts");
+			this.result = rs.getString("result");
+		}
+	}
+
 	/**
 	 * Convert a potential LFN (Long File Name, >255 chars) to a SFN (Short File Name, <=255 chars),
 	 * by truncating the LFN and appending a SHA-256 hash and remainder length to the end.
@@ -37,6 +117,51 @@ public class Queries {
 		return sfn;
 	}
 	
+	// identity, SFN -> hash; only used by the redirector, kept coherent by putMap and removeMap
+	private static final Cache<Map.Entry<String, String>, HashCode> mapCache = CacheBuilder.newBuilder()
+			.maximumSize(100_000)
+			.expireAfterWrite(10, TimeUnit.MINUTES)
+			.recordStats()
+			.build();
+	// names we recently found to be missing; only kept briefly, as they're likely to be uploaded soon
+	private static final Cache<Map.Entry<String, String>, Boolean> negativeMapCache = CacheBuilder.newBuilder()
+			.maximumSize(10_000)
+			.expireAfterWrite(5, TimeUnit.SECONDS)
+			.build();
+	// bumped on every write, so a lookup that raced with a write knows not to trust what it found
+	private static final AtomicLong mapGeneration = new AtomicLong();
+
+	// how many values go into a single IN (...) clause
+	private static final int BATCH_SIZE = 500;
+
+	private static final Histogram GET_MAP_TIME = queryTimer("getMap");
+	private static final Histogram COMMIT_TIME = queryTimer("commit");
+	private static final Histogram REMOVE_MAPS_TIME = queryTimer("removeMaps");
+	private static final Histogram GET_MAP_COUNT_TIME = queryTimer("getMapCount");
+	private static final Histogram IS_MAPPED_TIME = queryTimer("isMapped");
+	private static final Histogram REMOVE_FILESIZE_TIME = queryTimer("removeFilesize");
+	private static final Histogram REMOVE_PENDING_BACKUP_TIME = queryTimer("removePendingBackup");
+	private static final Histogram REMOVE_PENDING_BACKUPS_TIME = queryTimer("removePendingBackups");
+	private static final Histogram GET_PENDING_BACKUPS_TIME = queryTimer("getPendingBackups");
+	private static final Histogram COUNT_PENDING_BACKUPS_TIME = queryTimer("countPendingBackups");
+	private static final Histogram GET_REFERENCED_HASHES_TIME = queryTimer("getReferencedHashes");
+	private static final Histogram FORGET_UNREFERENCED_TIME = queryTimer("forgetUnreferenced");
+	private static final Histogram PUT_MULTIPART_TIME = queryTimer("putMultipart");
+	private static final Histogram GET_MULTIPART_TIME = queryTimer("getMultipart");
+	private static final Histogram GET_MULTIPART_REV_TIME = queryTimer("getMultipartRev");
+	private static final Histogram GET_ORIGIN_VALIDATORS_TIME = queryTimer("getOriginValidators");
+	private static final Histogram PUT_ORIGIN_VALIDATORS_TIME = queryTimer("putOriginValidators");
+	private static final Histogram TOUCH_ORIGIN_VALIDATORS_TIME = queryTimer("touchOriginValidators");
+	private static final Histogram PUT_RIVET_JOB_TIME = queryTimer("putRivetJob");
+	private static final Histogram GET_RIVET_JOB_TIME = queryTimer("getRivetJob");
+	private static final Histogram CLAIM_RIVET_JOBS_TIME = queryTimer("claimRivetJobs");
+	private static final Histogram UPDATE_RIVET_JOB_TIME = queryTimer("updateRivetJob");
+	private static final Histogram FORGET_RIVET_JOBS_TIME = queryTimer("forgetRivetJobs");
+
+	private static Histogram queryTimer(String query) {
+		return Metrics.histogram("poolmgr_query_seconds", "Time spent running each kind of query, including waiting for a connection", "query", query);
+	}
+
 	private static void onSQLException(SQLException e) {
 		e.printStackTrace();
 		System.err.println("Got SQL exception!");
@@ -44,6 +169,7 @@ public class Queries {
 	
 	public static HashCode getMap(DataSource dataSource, String identity, String name) {
 		name = toSFN(name);
+		long start = System.nanoTime();
 		try (Connection c = dataSource.getConnection()) {
 			try (PreparedStatement ps = c.prepareStatement("SELECT `hash` FROM `name_map` WHERE `identity` = ? AND `name` = ?;")) {
 				ps.setString(1, identity);
@@ -59,46 +185,335 @@ public class Queries {
 		} catch (SQLException e) {
 			onSQLException(e);
 			throw new RuntimeException(e);
+		} finally {
+			GET_MAP_TIME.observeSince(start);
+		}
+	}
+
+	/**
+	 * Like {@link #getMap}, but consults an in-memory cache first. Writes through putMap and
+	 * removeMap are reflected immediately.
+	 */
+	public static HashCode getMapCached(DataSource dataSource, String identity, String name) {
+		Map.Entry<String, String> key = Maps.immutableEntry(identity, toSFN(name));
+		HashCode hash = mapCache.getIfPresent(key);
+		if (hash != null) return hash;
+		if (negativeMapCache.getIfPresent(key) != null) throw new IllegalArgumentException("Not found");
+		long gen = mapGeneration.get();
+		try {
+			hash = getMap(dataSource, identity, name);
+		} catch (IllegalArgumentException e) {
+			negativeMapCache.put(key, Boolean.TRUE);
+			if (mapGeneration.get() != gen) negativeMapCache.invalidate(key);
+			throw e;
 		}
+		mapCache.put(key, hash);
+		if (mapGeneration.get() != gen) mapCache.invalidate(key);
+		return hash;
 	}
 
+	public static CacheStats mapCacheStats() {
+		return mapCache.stats();
+	}
+
+	private static void onMapWritten(String identity, String sfn, HashCode hash) {
+		Map.Entry<String, String> key = Maps.immutableEntry(identity, sfn);
+		mapGeneration.incrementAndGet();
+		negativeMapCache.invalidate(key);
+		if (hash == null) {
+			mapCache.invalidate(key);
+		} else {
+			mapCache.put(key, hash);
+		}
+	}
+
+	/**
+	 * Start a group of writes that should land together. See {@link UnitOfWork}.
+	 */
+	public static UnitOfWork begin(DataSource dataSource) {
+		return new UnitOfWork(dataSource);
+	}
+
+	/**
+	 * A group of writes that are queued up and then run together by {@link #commit} on a single
+	 * connection, in a single transaction, batched where possible. Nothing touches the database
+	 * until then, so one of these can be built up while other work is still going on.
+	 * <p>
+	 * A hash given to {@link #putPendingBackup} is one the caller just stored, and gets a
+	 * refcounts row here if it doesn't have one. Any other hash given to {@link #putMap} must
+	 * already have one, or the commit fails with a {@link BlobMissingException}.
+	 */
+	public static final class UnitOfWork {
+		private final DataSource dataSource;
+		private final List<MapWrite> maps = Lists.newArrayList();
+		private final Map<HashCode, Long> filesizes = Maps.newLinkedHashMap();
+		private final Set<HashCode> pendingBackups = Sets.newLinkedHashSet();
+		private final Set<String> multipartRemovals = Sets.newLinkedHashSet();
+
+		private UnitOfWork(DataSource dataSource) {
+			this.dataSource = dataSource;
+		}
+
+		public UnitOfWork putMap(String identity, String name, HashCode hash) {
+			maps.add(new MapWrite(identity, toSFN(name), hash));
+			return this;
+		}
+
+		public UnitOfWork putFilesize(HashCode hash, long size) {
+			filesizes.putIfAbsent(hash, size);
+			return this;
+		}
+
+		public UnitOfWork putPendingBackup(HashCode hash) {
+			pendingBackups.add(hash);
+			return this;
+		}
+
+		public UnitOfWork removeMultipart(String tempfile) {
+			multipartRemovals.add(tempfile);
+			return this;
+		}
+
+		public void commit() {
+			long start = System.nanoTime();
+			try (Connection c = dataSource.getConnection()) {
+				c.setAutoCommit(false);
+				try {
+					if (!pendingBackups.isEmpty()) {
+						// the blob exists now, even if nothing refers to it yet. that includes taking
+						// back a row forgetUnreferenced has marked for deletion
+						try (PreparedStatement ps = c.prepareStatement("INSERT INTO `refcounts` (`hash`, `refs`) VALUES (?, 0) ON DUPLICATE KEY UPDATE `refs` = GREATEST(`refs`, 0);")) {
+							for (HashCode hash : pendingBackups) {
+								ps.setBytes(1, hash.asBytes());
+								ps.addBatch();
+							}
+							ps.executeBatch();
+						}
+					}
+					for (MapWrite mw : maps) {
+						Queries.putMap(c, mw.identity, mw.sfn, mw.hash);
+					}
+					if (!filesizes.isEmpty()) {
+						try (PreparedStatement ps = c.prepareStatement("INSERT IGNORE INTO `filesizes` (`hash`, `size`) VALUES (?, ?);")) {
+							for (Map.Entry<HashCode, Long> en : filesizes.entrySet()) {
+								ps.setBytes(1, en.getKey().asBytes());
+								ps.setLong(2, en.getValue());
+								ps.addBatch();
+							}
+							ps.executeBatch();
+						}
+					}
+					if (!pendingBackups.isEmpty()) {
+						try (PreparedStatement ps = c.prepareStatement("INSERT IGNORE INTO `pending_backup` (`hash`) VALUES (?);")) {
+							for (HashCode hash : pendingBackups) {
+								ps.setBytes(1, hash.asBytes());
+								ps.addBatch();
+							}
+							ps.executeBatch();
+						}
+					}
+					if (!multipartRemovals.isEmpty()) {
+						try (PreparedStatement ps = c.prepareStatement("DELETE FROM `multipart_uploads` WHERE `tempfile` = ?;")) {
+							for (String tempfile : multipartRemovals) {
+								ps.setString(1, tempfile);
+								ps.addBatch();
+							}
+							ps.executeBatch();
+						}
+					}
+					c.commit();
+				} catch (SQLException | RuntimeException e) {
+					c.rollback();
+					throw e;
+				}
+			} catch (SQLException e) {
+				onSQLException(e);
+				throw new RuntimeException(e);
+			} finally {
+				COMMIT_TIME.observeSince(start);
+			}
+			for (MapWrite mw : maps) {
+				onMapWritten(mw.identity, mw.sfn, mw.hash);
+			}
+		}
+	}
+
+	private static final class MapWrite {
+		private final String identity;
+		private final String sfn;
+		private final HashCode hash;
+		private MapWrite(String identity, String sfn, HashCode hash) {
+			this.identity = identity;
+			this.sfn = sfn;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * Map a name to a hash, replacing whatever it was mapped to before, and keep the reference
+	 * counts of both hashes in step.
+	 */
 	public static void putMap(DataSource dataSource, String identity, String name, HashCode hash) {
-		name = toSFN(name);
-		try (Connection c = dataSource.getConnection()) {
-			try (PreparedStatement ps = c.prepareStatement("INSERT INTO `name_map` (`identity`, `name`, `hash`) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE `hash` = ?;")) {
-				ps.setString(1, identity);
-				ps.setString(2, name);
-				ps.setBytes(3, hash.asBytes());
-				ps.setBytes(4, hash.asBytes());
+		begin(dataSource).putMap(identity, name, hash).commit();
+	}
+
+	// must be called inside a transaction
+	private static void putMap(Connection c, String identity, String sfn, HashCode hash) throws SQLException {
+		HashCode old = null;
+		try (PreparedStatement ps = c.prepareStatement("SELECT `hash` FROM `name_map` WHERE `identity` = ? AND `name` = ? FOR UPDATE;")) {
+			ps.setString(1, identity);
+			ps.setString(2, sfn);
+			try (ResultSet rs = ps.executeQuery()) {
+				if (rs.first()) {
+					old = HashCode.fromBytes(rs.getBytes("hash"));
+				}
+			}
+		}
+		if (hash.equals(old)) return;
+		// lock both refcounts rows, in the same order removeMaps does so renames in opposite
+		// directions can't deadlock. holding the new hash's row also means a concurrent
+		// forgetUnreferenced either marks it first (and we see it marked or gone) or waits for us
+		// (and sees the reference)
+		boolean present = false;
+		List<HashCode> touched = old == null ? Collections.singletonList(hash) : Ordering.usingToString().sortedCopy(Arrays.asList(hash, old));
+		try (PreparedStatement ps = c.prepareStatement("SELECT `refs` FROM `refcounts` WHERE `hash` = ? FOR UPDATE;")) {
+			for (HashCode hc : touched) {
+				ps.setBytes(1, hc.asBytes());
+				try (ResultSet rs = ps.executeQuery()) {
+					// a marked row's blob is being deleted, which is as good as gone
+					if (rs.first() && hc.equals(hash) && rs.getLong("refs") >= 0) present = true;
+				}
+			}
+		}
+		if (!present) throw new BlobMissingException(hash);
+		try (PreparedStatement ps = c.prepareStatement("INSERT INTO `name_map` (`identity`, `name`, `hash`) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE `hash` = ?;")) {
+			ps.setString(1, identity);
+			ps.setString(2, sfn);
+			ps.setBytes(3, hash.asBytes());
+			ps.setBytes(4, hash.asBytes());
+			ps.executeUpdate();
+		}
+		try (PreparedStatement ps = c.prepareStatement("UPDATE `refcounts` SET `refs` = `refs` + 1 WHERE `hash` = ?;")) {
+			ps.setBytes(1, hash.asBytes());
+			ps.executeUpdate();
+		}
+		if (old != null) {
+			// the old blob is left where it is even if this was its last reference, same as always
+			try (PreparedStatement ps = c.prepareStatement("UPDATE `refcounts` SET `refs` = `refs` - 1 WHERE `hash` = ? AND `refs` > 0;")) {
+				ps.setBytes(1, old.asBytes());
 				ps.executeUpdate();
 			}
-		} catch (SQLException e) {
-			onSQLException(e);
-			throw new RuntimeException(e);
 		}
 	}
 	
-	public static boolean removeMap(DataSource dataSource, String identity, String name) {
-		name = toSFN(name);
+	/**
+	 * Remove a single mapping. See {@link #removeMaps}.
+	 * @return the hash the name was mapped to, if nothing references it anymore and its blob
+	 * 		should be deleted with {@link #forgetUnreferenced}; otherwise null
+	 */
+	public static HashCode removeMap(DataSource dataSource, String identity, String name) {
+		return Iterables.getOnlyElement(removeMaps(dataSource, identity, Collections.singleton(name)), null);
+	}
+	
+	/**
+	 * Remove many mappings at once, dropping the reference counts of the hashes they pointed to.
+	 * All in one transaction, and in a handful of statements rather than a handful per name.
+	 * Names that aren't mapped are ignored.
+	 * <p>
+	 * Hashes left with no references keep their rows (and their blobs); hand them to
+	 * {@link #forgetUnreferenced} to get rid of both.
+	 * @return the hashes that are no longer referenced by any name
+	 */
+	public static Set<HashCode> removeMaps(DataSource dataSource, String identity, Collection<String> names) {
+		Set<String> sfns = Sets.newLinkedHashSet();
+		for (String name : names) {
+			sfns.add(toSFN(name));
+		}
+		if (sfns.isEmpty()) return Collections.emptySet();
+		Multiset<HashCode> removed = HashMultiset.create();
+		Set<HashCode> orphaned = Sets.newLinkedHashSet();
+		long start = System.nanoTime();
 		try (Connection c = dataSource.getConnection()) {
-			try (PreparedStatement ps = c.prepareStatement("DELETE FROM `name_map` WHERE `identity` = ? AND `name` = ?;")) {
-				ps.setString(1, identity);
-				ps.setString(2, name);
-				return ps.executeUpdate() > 0;
+			c.setAutoCommit(false);
+			try {
+				for (List<String> chunk : Iterables.partition(sfns, BATCH_SIZE)) {
+					String in = placeholders(chunk.size());
+					try (PreparedStatement ps = c.prepareStatement("SELECT `hash` FROM `name_map` WHERE `identity` = ? AND `name` IN ("+in+") FOR UPDATE;")) {
+						ps.setString(1, identity);
+						for (int i = 0; i < chunk.size(); i++) {
+							ps.setString(i+2, chunk.get(i));
+						}
+						try (ResultSet rs = ps.executeQuery()) {
+							while (rs.next()) {
+								removed.add(HashCode.fromBytes(rs.getBytes("hash")));
+							}
+						}
+					}
+					try (PreparedStatement ps = c.prepareStatement("DELETE FROM `name_map` WHERE `identity` = ? AND `name` IN ("+in+");")) {
+						ps.setString(1, identity);
+						for (int i = 0; i < chunk.size(); i++) {
+							ps.setString(i+2, chunk.get(i));
+						}
+						ps.executeUpdate();
+					}
+				}
+				// sorted, so two batches touching the same hashes lock them in the same order
+				List<HashCode> touched = Ordering.usingToString().sortedCopy(removed.elementSet());
+				try (PreparedStatement ps = c.prepareStatement("UPDATE `refcounts` SET `refs` = `refs` - LEAST(`refs`, ?) WHERE `hash` = ? AND `refs` > 0;")) {
+					for (HashCode hc : touched) {
+						ps.setInt(1, removed.count(hc));
+						ps.setBytes(2, hc.asBytes());
+						ps.addBatch();
+					}
+					ps.executeBatch();
+				}
+				orphaned.addAll(touched);
+				for (List<HashCode> chunk : Lists.partition(touched, BATCH_SIZE)) {
+					try (PreparedStatement ps = c.prepareStatement("SELECT `hash` FROM `refcounts` WHERE `hash` IN ("+placeholders(chunk.size())+") AND `refs` > 0;")) {
+						setHashes(ps, 1, chunk);
+						try (ResultSet rs = ps.executeQuery()) {
+							while (rs.next()) {
+								orphaned.remove(HashCode.fromBytes(rs.getBytes("hash")));
+							}
+						}
+					}
+				}
+				c.commit();
+			} catch (SQLException | RuntimeException e) {
+				c.rollback();
+				throw e;
 			}
 		} catch (SQLException e) {
 			onSQLException(e);
 			throw new RuntimeException(e);
+		} finally {
+			REMOVE_MAPS_TIME.observeSince(start);
+		}
+		for (String sfn : sfns) {
+			onMapWritten(identity, sfn, null);
+		}
+		return orphaned;
+	}
+
+	private static String placeholders(int count) {
+		return String.join(", ", Collections.nCopies(count, "?"));
+	}
+
+	private static void setHashes(PreparedStatement ps, int start, List<HashCode> hashes) throws SQLException {
+		for (int i = 0; i < hashes.size(); i++) {
+			ps.setBytes(start+i, hashes.get(i).asBytes());
 		}
 	}
 	
 	public static int getMapCount(DataSource dataSource, HashCode hash) {
+		long start = System.nanoTime();
 		try (Connection c = dataSource.getConnection()) {
-			try (PreparedStatement ps = c.prepareStatement("SELECT COUNT(1) AS count FROM `name_map` WHERE `hash` = ?;")) {
+			try (PreparedStatement ps = c.prepareStatement("SELECT `refs` FROM `refcounts` WHERE `hash` = ?;")) {
 				ps.setBytes(1, hash.asBytes());
 				try (ResultSet rs = ps.executeQuery()) {
 					if (rs.first()) {
-						return rs.getInt("count");
+						// -1 while forgetUnreferenced is deleting it
+						return Math.max(0, rs.getInt("refs"));
 					} else {
 						return 0;
 					}
@@ -107,12 +522,15 @@ public class Queries {
 		} catch (SQLException e) {
 			onSQLException(e);
 			throw new RuntimeException(e);
+		} finally {
+			GET_MAP_COUNT_TIME.observeSince(start);
 		}
 	}
 	
 	public static boolean isMapped(DataSource dataSource, HashCode hash) {
+		long start = System.nanoTime();
 		try (Connection c = dataSource.getConnection()) {
-			try (PreparedStatement ps = c.prepareStatement("SELECT 1 FROM `name_map` WHERE `hash` = ? LIMIT 1;")) {
+			try (PreparedStatement ps = c.prepareStatement("SELECT 1 FROM `refcounts` WHERE `hash` = ? AND `refs` > 0;")) {
 				ps.setBytes(1, hash.asBytes());
 				try (ResultSet rs = ps.executeQuery()) {
 					return rs.first();
@@ -121,50 +539,284 @@ public class Queries {
 		} catch (SQLException e) {
 			onSQLException(e);
 			throw new RuntimeException(e);
+		} finally {
+			IS_MAPPED_TIME.observeSince(start);
 		}
 	}
 
 	public static void putFilesize(DataSource dataSource, HashCode hash, long size) {
+		begin(dataSource).putFilesize(hash, size).commit();
+	}
+	
+	public static void removeFilesize(DataSource dataSource, HashCode hash) {
+		long start = System.nanoTime();
 		try (Connection c = dataSource.getConnection()) {
-			try (PreparedStatement ps = c.prepareStatement("INSERT IGNORE INTO `filesizes` (`hash`, `size`) VALUES (?, ?);")) {
+			try (PreparedStatement ps = c.prepareStatement("DELETE FROM `filesizes` WHERE `hash` = ?;")) {
 				ps.setBytes(1, hash.asBytes());
-				ps.setLong(2, size);
 				ps.executeUpdate();
 			}
 		} catch (SQLException e) {
-			onSQLException(e);
 			throw new RuntimeException(e);
+		} finally {
+			REMOVE_FILESIZE_TIME.observeSince(start);
 		}
 	}
+
+	public static void putPendingBackup(DataSource dataSource, HashCode hash) {
+		begin(dataSource).putPendingBackup(hash).commit();
+	}
 	
-	public static void removeFilesize(DataSource dataSource, HashCode hash) {
+	public static void removePendingBackup(DataSource dataSource, HashCode hash) {
+		long start = System.nanoTime();
 		try (Connection c = dataSource.getConnection()) {
-			try (PreparedStatement ps = c.prepareStatement("DELETE FROM `filesizes` WHERE `hash` = ?;")) {
+			try (PreparedStatement ps = c.prepareStatement("DELETE FROM `pending_backup` WHERE `hash` = ?;")) {
 				ps.setBytes(1, hash.asBytes());
 				ps.executeUpdate();
 			}
 		} catch (SQLException e) {
+			onSQLException(e);
 			throw new RuntimeException(e);
+		} finally {
+			REMOVE_PENDING_BACKUP_TIME.observeSince(start);
 		}
 	}
 
-	public static void putPendingBackup(DataSource dataSource, HashCode hash) {
+	public static void removePendingBackups(DataSource dataSource, Collection<HashCode> hashes) {
+		if (hashes.isEmpty()) return;
+		long start = System.nanoTime();
 		try (Connection c = dataSource.getConnection()) {
-			try (PreparedStatement ps = c.prepareStatement("INSERT IGNORE INTO `pending_backup` (`hash`) VALUES (?);")) {
-				ps.setBytes(1, hash.asBytes());
-				ps.executeUpdate();
+			for (List<HashCode> chunk : Iterables.partition(hashes, BATCH_SIZE)) {
+				try (PreparedStatement ps = c.prepareStatement("DELETE FROM `pending_backup` WHERE `hash` IN ("+placeholders(chunk.size())+");")) {
+					setHashes(ps, 1, chunk);
+					ps.executeUpdate();
+				}
 			}
 		} catch (SQLException e) {
 			onSQLException(e);
 			throw new RuntimeException(e);
+		} finally {
+			REMOVE_PENDING_BACKUPS_TIME.observeSince(start);
 		}
 	}
-	
-	public static void removePendingBackup(DataSource dataSource, HashCode hash) {
+
+	/**
+	 * Get the next page of hashes waiting to be backed up, in hash order.
+	 * @param after the last hash of the previous page, or null to start from the beginning
+	 */
+	public static List<HashCode> getPendingBackups(DataSource dataSource, HashCode after, int limit) {
+		long start = System.nanoTime();
 		try (Connection c = dataSource.getConnection()) {
-			try (PreparedStatement ps = c.prepareStatement("DELETE FROM `pending_backup` WHERE `hash` = ?;")) {
-				ps.setBytes(1, hash.asBytes());
-				ps.executeUpdate();
+			try (PreparedStatement ps = c.prepareStatement(after == null
+					? "SELECT `hash` FROM `pending_backup` ORDER BY `hash` LIMIT ?;"
+					: "SELECT `hash` FROM `pending_backup` WHERE `hash` > ? ORDER BY `hash` LIMIT ?;")) {
+				int i = 1;
+				if (after != null) ps.setBytes(i++, after.asBytes());
+				ps.setInt(i, limit);
+				List<HashCode> out = Lists.newArrayListWithCapacity(limit);
+				try (ResultSet rs = ps.executeQuery()) {
+					while (rs.next()) {
+						out.add(HashCode.fromBytes(rs.getBytes("hash")));
+					}
+				}
+				return out;
+			}
+		} catch (SQLException e) {
+			onSQLException(e);
+			throw new RuntimeException(e);
+		} finally {
+			GET_PENDING_BACKUPS_TIME.observeSince(start);
+		}
+	}
+
+	public static long countPendingBackups(DataSource dataSource) {
+		long start = System.nanoTime();
+		try (Connection c = dataSource.getConnection()) {
+			try (PreparedStatement ps = c.prepareStatement("SELECT COUNT(1) AS count FROM `pending_backup`;")) {
+				try (ResultSet rs = ps.executeQuery()) {
+					if (rs.first()) {
+						return rs.getLong("count");
+					} else {
+						return 0;
+					}
+				}
+			}
+		} catch (SQLException e) {
+			onSQLException(e);
+			throw new RuntimeException(e);
+		} finally {
+			COUNT_PENDING_BACKUPS_TIME.observeSince(start);
+		}
+	}
+
+	/**
+	 * Get a page of the hashes that currently have at least one reference, in hash order, for
+	 * merging against a listing of the backend.
+	 * @param after only return hashes that sort after these bytes (which can be a partial hash)
+	 * @param before only return hashes that sort before these bytes, or null for no upper bound
+	 */
+	public static List<HashCode> getReferencedHashes(DataSource dataSource, byte[] after, byte[] before, int limit) {
+		long start = System.nanoTime();
+		try (Connection c = dataSource.getConnection()) {
+			try (PreparedStatement ps = c.prepareStatement(before == null
+					? "SELECT `hash` FROM `refcounts` WHERE `hash` > ? AND `refs` > 0 ORDER BY `hash` LIMIT ?;"
+					: "SELECT `hash` FROM `refcounts` WHERE `hash` > ? AND `hash` < ? AND `refs` > 0 ORDER BY `hash` LIMIT ?;")) {
+				int i = 1;
+				ps.setBytes(i++, after);
+				if (before != null) ps.setBytes(i++, before);
+				ps.setInt(i, limit);
+				List<HashCode> out = Lists.newArrayListWithCapacity(limit);
+				try (ResultSet rs = ps.executeQuery()) {
+					while (rs.next()) {
+						out.add(HashCode.fromBytes(rs.getBytes("hash")));
+					}
+				}
+				return out;
+			}
+		} catch (SQLException e) {
+			onSQLException(e);
+			throw new RuntimeException(e);
+		} finally {
+			GET_REFERENCED_HASHES_TIME.observeSince(start);
+		}
+	}
+
+	/**
+	 * Delete the blobs of hashes we believe nothing references anymore, as long as that's still
+	 * true, and drop their bookkeeping. Done in three steps so no locks are held while the
+	 * backend is busy: the refcounts rows are marked (refs = -1) and committed, the blobs are
+	 * deleted with no transaction open, and then the rows of the hashes whose blobs are actually
+	 * gone are deleted. A putMap that comes in while a row is marked treats the blob as missing
+	 * and has it stored again.
+	 * @param untracked whether to also delete hashes that have no refcounts row at all (the
+	 * 		sweeper finding blobs whose upload never got as far as the database); they get a marked
+	 * 		row for the duration. otherwise, no row means someone else already deleted the blob, and
+	 * 		it may have been stored again since
+	 * @param remover deletes the given hashes' blobs from the backend and returns the ones it
+	 * 		managed to delete; if it throws, none of them are assumed to be gone
+	 * @return the hashes whose blobs were deleted
+	 */
+	public static Set<HashCode> forgetUnreferenced(DataSource dataSource, Collection<HashCode> hashes, boolean untracked, Function<Set<HashCode>, Set<HashCode>> remover) {
+		if (hashes.isEmpty()) return Collections.emptySet();
+		List<HashCode> sorted = Ordering.usingToString().sortedCopy(Sets.newHashSet(hashes));
+		Set<HashCode> marked = Sets.newLinkedHashSet();
+		Set<HashCode> inserted = Sets.newHashSet();
+		long start = System.nanoTime();
+		try {
+			markUnreferenced(dataSource, sorted, untracked, marked, inserted);
+		} finally {
+			FORGET_UNREFERENCED_TIME.observeSince(start);
+		}
+		if (marked.isEmpty()) return marked;
+		Set<HashCode> gone = Collections.emptySet();
+		try {
+			gone = Sets.newHashSet(remover.apply(Collections.unmodifiableSet(marked)));
+			gone.retainAll(marked);
+		} finally {
+			start = System.nanoTime();
+			try {
+				unmarkUnreferenced(dataSource, marked, inserted, gone);
+			} finally {
+				FORGET_UNREFERENCED_TIME.observeSince(start);
+			}
+		}
+		return gone;
+	}
+
+	private static void markUnreferenced(DataSource dataSource, List<HashCode> sorted, boolean untracked, Set<HashCode> marked, Set<HashCode> inserted) {
+		try (Connection c = dataSource.getConnection()) {
+			c.setAutoCommit(false);
+			try {
+				for (List<HashCode> chunk : Lists.partition(sorted, BATCH_SIZE)) {
+					Set<HashCode> missing = Sets.newLinkedHashSet(chunk);
+					List<HashCode> toMark = Lists.newArrayList();
+					try (PreparedStatement ps = c.prepareStatement("SELECT `hash`, `refs` FROM `refcounts` WHERE `hash` IN ("+placeholders(chunk.size())+") FOR UPDATE;")) {
+						setHashes(ps, 1, chunk);
+						try (ResultSet rs = ps.executeQuery()) {
+							while (rs.next()) {
+								HashCode hash = HashCode.fromBytes(rs.getBytes("hash"));
+								missing.remove(hash);
+								// referenced, or already being deleted by someone else
+								if (rs.getLong("refs") == 0) toMark.add(hash);
+							}
+						}
+					}
+					if (!toMark.isEmpty()) {
+						try (PreparedStatement ps = c.prepareStatement("UPDATE `refcounts` SET `refs` = -1 WHERE `hash` IN ("+placeholders(toMark.size())+");")) {
+							setHashes(ps, 1, toMark);
+							ps.executeUpdate();
+						}
+						marked.addAll(toMark);
+					}
+					if (untracked && !missing.isEmpty()) {
+						try (PreparedStatement ps = c.prepareStatement("INSERT INTO `refcounts` (`hash`, `refs`) VALUES (?, -1);")) {
+							for (HashCode hash : missing) {
+								ps.setBytes(1, hash.asBytes());
+								ps.addBatch();
+							}
+							ps.executeBatch();
+						}
+						marked.addAll(missing);
+						inserted.addAll(missing);
+					}
+				}
+				c.commit();
+			} catch (SQLException | RuntimeException e) {
+				c.rollback();
+				marked.clear();
+				inserted.clear();
+				throw e;
+			}
+		} catch (SQLException e) {
+			onSQLException(e);
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void unmarkUnreferenced(DataSource dataSource, Set<HashCode> marked, Set<HashCode> inserted, Set<HashCode> gone) {
+		List<HashCode> sorted = Ordering.usingToString().sortedCopy(marked);
+		try (Connection c = dataSource.getConnection()) {
+			c.setAutoCommit(false);
+			try {
+				for (List<HashCode> chunk : Lists.partition(sorted, BATCH_SIZE)) {
+					// a store of the same content may have taken a row back while it was marked
+					// (see UnitOfWork.commit); that row is its now, whatever happened to the blob
+					Set<HashCode> stillMarked = Sets.newHashSet();
+					try (PreparedStatement ps = c.prepareStatement("SELECT `hash` FROM `refcounts` WHERE `hash` IN ("+placeholders(chunk.size())+") AND `refs` = -1 FOR UPDATE;")) {
+						setHashes(ps, 1, chunk);
+						try (ResultSet rs = ps.executeQuery()) {
+							while (rs.next()) {
+								stillMarked.add(HashCode.fromBytes(rs.getBytes("hash")));
+							}
+						}
+					}
+					List<HashCode> forget = Lists.newArrayList();
+					List<HashCode> restore = Lists.newArrayList();
+					for (HashCode hash : chunk) {
+						if (!stillMarked.contains(hash)) continue;
+						// a blob that didn't get deleted goes back to how it was, to be tried again
+						// later; one that had no row before still doesn't
+						(gone.contains(hash) || inserted.contains(hash) ? forget : restore).add(hash);
+					}
+					if (!forget.isEmpty()) {
+						String in = placeholders(forget.size());
+						for (String table : new String[] { "refcounts", "filesizes", "pending_backup" }) {
+							try (PreparedStatement ps = c.prepareStatement("DELETE FROM `"+table+"` WHERE `hash` IN ("+in+");")) {
+								setHashes(ps, 1, forget);
+								ps.executeUpdate();
+							}
+						}
+					}
+					if (!restore.isEmpty()) {
+						try (PreparedStatement ps = c.prepareStatement("UPDATE `refcounts` SET `refs` = 0 WHERE `hash` IN ("+placeholders(restore.size())+");")) {
+							setHashes(ps, 1, restore);
+							ps.executeUpdate();
+						}
+					}
+				}
+				c.commit();
+			} catch (SQLException | RuntimeException e) {
+				c.rollback();
+				throw e;
 			}
 		} catch (SQLException e) {
 			onSQLException(e);
@@ -174,6 +826,7 @@ public class Queries {
 
 	public static void putMultipart(DataSource dataSource, String identity, String name, String tempfile) {
 		name = toSFN(name);
+		long start = System.nanoTime();
 		try (Connection c = dataSource.getConnection()) {
 			try (PreparedStatement ps = c.prepareStatement("INSERT INTO `multipart_uploads` (`identity`, `name`, `tempfile`) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE `tempfile` = ?;")) {
 				ps.setString(1, identity);
@@ -185,11 +838,14 @@ public class Queries {
 		} catch (SQLException e) {
 			onSQLException(e);
 			throw new RuntimeException(e);
+		} finally {
+			PUT_MULTIPART_TIME.observeSince(start);
 		}
 	}
 
 	public static String getMultipart(DataSource dataSource, String identity, String name) {
 		name = toSFN(name);
+		long start = System.nanoTime();
 		try (Connection c = dataSource.getConnection()) {
 			try (PreparedStatement ps = c.prepareStatement("SELECT `tempfile` FROM `multipart_uploads` WHERE `identity` = ? AND `name` = ?;")) {
 				ps.setString(1, identity);
@@ -205,10 +861,13 @@ public class Queries {
 		} catch (SQLException e) {
 			onSQLException(e);
 			throw new RuntimeException(e);
+		} finally {
+			GET_MULTIPART_TIME.observeSince(start);
 		}
 	}
 
 	public static String getMultipartRev(DataSource dataSource, String tempfile) {
+		long start = System.nanoTime();
 		try (Connection c = dataSource.getConnection()) {
 			try (PreparedStatement ps = c.prepareStatement("SELECT `name` FROM `multipart_uploads` WHERE `tempfile` = ?;")) {
 				ps.setString(1, tempfile);
@@ -223,18 +882,237 @@ public class Queries {
 		} catch (SQLException e) {
 			onSQLException(e);
 			throw new RuntimeException(e);
+		} finally {
+			GET_MULTIPART_REV_TIME.observeSince(start);
 		}
 	}
 
 	public static void removeMultipart(DataSource dataSource, String tempfile) {
+		begin(dataSource).removeMultipart(tempfile).commit();
+	}
+
+	/**
+	 * @return the validators last stored for {@code url}, or null if there aren't any
+	 */
+	public static OriginValidators getOriginValidators(DataSource dataSource, String url) {
+		url = toSFN(url);
+		long start = System.nanoTime();
 		try (Connection c = dataSource.getConnection()) {
-			try (PreparedStatement ps = c.prepareStatement("DELETE FROM `multipart_uploads` WHERE `tempfile` = ?;")) {
-				ps.setString(1, tempfile);
+			try (PreparedStatement ps = c.prepareStatement("SELECT `etag`, `last_modified`, `hash`, `fetched_at` FROM `origin_validators` WHERE `url` = ?;")) {
+				ps.setString(1, url);
+				try (ResultSet rs = ps.executeQuery()) {
+					if (rs.first()) {
+						return new OriginValidators(rs.getString("etag"), rs.getString("last_modified"), HashCode.fromBytes(rs.getBytes("hash")), rs.getLong("fetched_at"));
+					} else {
+						return null;
+					}
+				}
+			}
+		} catch (SQLException e) {
+			onSQLException(e);
+			throw new RuntimeException(e);
+		} finally {
+			GET_ORIGIN_VALIDATORS_TIME.observeSince(start);
+		}
+	}
+
+	public static void putOriginValidators(DataSource dataSource, String url, String etag, String lastModified, HashCode hash) {
+		url = toSFN(url);
+		long start = System.nanoTime();
+		try (Connection c = dataSource.getConnection()) {
+			try (PreparedStatement ps = c.prepareStatement("INSERT INTO `origin_validators` (`url`, `etag`, `last_modified`, `hash`, `fetched_at`) VALUES (?, ?, ?, ?, ?) "
+					+ "ON DUPLICATE KEY UPDATE `etag` = VALUES(`etag`), `last_modified` = VALUES(`last_modified`), `hash` = VALUES(`hash`), `fetched_at` = VALUES(`fetched_at`);")) {
+				ps.setString(1, url);
+				ps.setString(2, etag);
+				ps.setString(3, lastModified);
+				ps.setBytes(4, hash.asBytes());
+				ps.setLong(5, System.currentTimeMillis());
+				ps.executeUpdate();
+			}
+		} catch (SQLException e) {
+			onSQLException(e);
+			throw new RuntimeException(e);
+		} finally {
+			PUT_ORIGIN_VALIDATORS_TIME.observeSince(start);
+		}
+	}
+
+	/**
+	 * Mark the stored hash for {@code url} as fresh again, e.g. after the origin answered a
+	 * conditional request with a 304.
+	 */
+	public static void touchOriginValidators(DataSource dataSource, String url) {
+		url = toSFN(url);
+		long start = System.nanoTime();
+		try (Connection c = dataSource.getConnection()) {
+			try (PreparedStatement ps = c.prepareStatement("UPDATE `origin_validators` SET `fetched_at` = ? WHERE `url` = ?;")) {
+				ps.setLong(1, System.currentTimeMillis());
+				ps.setString(2, url);
 				ps.executeUpdate();
 			}
 		} catch (SQLException e) {
 			onSQLException(e);
 			throw new RuntimeException(e);
+		} finally {
+			TOUCH_ORIGIN_VALIDATORS_TIME.observeSince(start);
+		}
+	}
+
+	public static long putRivetJob(DataSource dataSource, String identity, String sourceUrl, String destinationPath, String callbackUrl) {
+		long start = System.nanoTime();
+		try (Connection c = dataSource.getConnection()) {
+			try (PreparedStatement ps = c.prepareStatement("INSERT INTO `rivet_jobs` (`identity`, `source_url`, `destination_path`, `callback_url`, `state`, `attempts`, `next_attempt`, `updated`) "
+					+ "VALUES (?, ?, ?, ?, 'QUEUED', 0, ?, ?);", Statement.RETURN_GENERATED_KEYS)) {
+				long now = System.currentTimeMillis();
+				ps.setString(1, identity);
+				ps.setString(2, sourceUrl);
+				ps.setString(3, destinationPath);
+				ps.setString(4, callbackUrl);
+				ps.setLong(5, now);
+				ps.setLong(6, now);
+				ps.executeUpdate();
+				try (ResultSet rs = ps.getGeneratedKeys()) {
+					if (!rs.first()) throw new SQLException("No id was generated for the job");
+					return rs.getLong(1);
+				}
+			}
+		} catch (SQLException e) {
+			onSQLException(e);
+			throw new RuntimeException(e);
+		} finally {
+			PUT_RIVET_JOB_TIME.observeSince(start);
+		}
+	}
+
+	/**
+	 * @return the job, or null if there's no such job
+	 */
+	public static RivetJob getRivetJob(DataSource dataSource, long id) {
+		long start = System.nanoTime();
+		try (Connection c = dataSource.getConnection()) {
+			try (PreparedStatement ps = c.prepareStatement("SELECT * FROM `rivet_jobs` WHERE `id` = ?;")) {
+				ps.setLong(1, id);
+				try (ResultSet rs = ps.executeQuery()) {
+					return rs.first() ? new RivetJob(rs) : null;
+				}
+			}
+		} catch (SQLException e) {
+			onSQLException(e);
+			throw new RuntimeException(e);
+		} finally {
+			GET_RIVET_JOB_TIME.observeSince(start);
+		}
+	}
+
+	/**
+	 * Find up to {@code limit} queued jobs that are due, and mark them as running.
+	 */
+	public static List<RivetJob> claimRivetJobs(DataSource dataSource, int limit) {
+		long start = System.nanoTime();
+		List<RivetJob> out = Lists.newArrayList();
+		try (Connection c = dataSource.getConnection()) {
+			List<RivetJob> due = Lists.newArrayList();
+			try (PreparedStatement ps = c.prepareStatement("SELECT * FROM `rivet_jobs` WHERE `state` = 'QUEUED' AND `next_attempt` <= ? ORDER BY `next_attempt` LIMIT ?;")) {
+				ps.setLong(1, System.currentTimeMillis());
+				ps.setInt(2, limit);
+				try (ResultSet rs = ps.executeQuery()) {
+					while (rs.next()) {
+						due.add(new RivetJob(rs));
+					}
+				}
+			}
+			try (PreparedStatement ps = c.prepareStatement("UPDATE `rivet_jobs` SET `state` = 'RUNNING', `updated` = ? WHERE `id` = ? AND `state` = 'QUEUED';")) {
+				for (RivetJob job : due) {
+					ps.setLong(1, System.currentTimeMillis());
+					ps.setLong(2, job.id);
+					// if it's not there any more, someone else got it
+					if (ps.executeUpdate() == 1) out.add(job);
+				}
+			}
+		} catch (SQLException e) {
+			onSQLException(e);
+			throw new RuntimeException(e);
+		} finally {
+			CLAIM_RIVET_JOBS_TIME.observeSince(start);
+		}
+		return out;
+	}
+
+	/**
+	 * Put a job (back) in the queue, to be tried again at {@code nextAttempt}.
+	 * @param result the outcome of the last attempt, as JSON
+	 */
+	public static void requeueRivetJob(DataSource dataSource, long id, int attempts, long nextAttempt, String result) {
+		updateRivetJob(dataSource, id, "QUEUED", attempts, nextAttempt, result);
+	}
+
+	/**
+	 * @param state DONE or FAILED
+	 * @param result the outcome, as JSON
+	 */
+	public static void finishRivetJob(DataSource dataSource, long id, String state, int attempts, String result) {
+		updateRivetJob(dataSource, id, state, attempts, 0, result);
+	}
+
+	private static void updateRivetJob(DataSource dataSource, long id, String state, int attempts, long nextAttempt, String result) {
+		long start = System.nanoTime();
+		try (Connection c = dataSource.getConnection()) {
+			try (PreparedStatement ps = c.prepareStatement("UPDATE `rivet_jobs` SET `state` = ?, `attempts` = ?, `next_attempt` = ?, `result` = ?, `updated` = ? WHERE `id` = ?;")) {
+				ps.setString(1, state);
+				ps.setInt(2, attempts);
+				ps.setLong(3, nextAttempt);
+				ps.setString(4, result);
+				ps.setLong(5, System.currentTimeMillis());
+				ps.setLong(6, id);
+				ps.executeUpdate();
+			}
+		} catch (SQLException e) {
+			onSQLException(e);
+			throw new RuntimeException(e);
+		} finally {
+			UPDATE_RIVET_JOB_TIME.observeSince(start);
+		}
+	}
+
+	/**
+	 * Put running jobs that haven't changed since {@code before} back in the queue; either we
+	 * went down while they ran, or we couldn't record how they went.
+	 * @return how many there were
+	 */
+	public static int resetRunningRivetJobs(DataSource dataSource, long before) {
+		long start = System.nanoTime();
+		try (Connection c = dataSource.getConnection()) {
+			try (PreparedStatement ps = c.prepareStatement("UPDATE `rivet_jobs` SET `state` = 'QUEUED', `next_attempt` = ?, `updated` = ? WHERE `state` = 'RUNNING' AND `updated` < ?;")) {
+				long now = System.currentTimeMillis();
+				ps.setLong(1, now);
+				ps.setLong(2, now);
+				ps.setLong(3, before);
+				return ps.executeUpdate();
+			}
+		} catch (SQLException e) {
+			onSQLException(e);
+			throw new RuntimeException(e);
+		} finally {
+			UPDATE_RIVET_JOB_TIME.observeSince(start);
+		}
+	}
+
+	/**
+	 * Delete finished jobs that haven't changed since {@code before}.
+	 * @return how many there were
+	 */
+	public static int forgetFinishedRivetJobs(DataSource dataSource, long before) {
+		long start = System.nanoTime();
+		try (Connection c = dataSource.getConnection()) {
+			try (PreparedStatement ps = c.prepareStatement("DELETE FROM `rivet_jobs` WHERE `state` IN ('DONE', 'FAILED') AND `updated` < ?;")) {
+				ps.setLong(1, before);
+				return ps.executeUpdate();
+			}
+		} catch (SQLException e) {
+			onSQLException(e);
+			throw new RuntimeException(e);
+		} finally {
+			FORGET_RIVET_JOBS_TIME.observeSince(start);
 		}
 	}
 
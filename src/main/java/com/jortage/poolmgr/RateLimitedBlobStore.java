@@ -0,0 +1,332 @@
+package com.jortage.poolmgr;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+import org.jclouds.aws.AWSResponseException;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobAccess;
+import org.jclouds.blobstore.domain.BlobMetadata;
+import org.jclouds.blobstore.domain.ContainerAccess;
+import org.jclouds.blobstore.domain.MultipartPart;
+import org.jclouds.blobstore.domain.MultipartUpload;
+import org.jclouds.blobstore.domain.PageSet;
+import org.jclouds.blobstore.domain.StorageMetadata;
+import org.jclouds.blobstore.options.CopyOptions;
+import org.jclouds.blobstore.options.CreateContainerOptions;
+import org.jclouds.blobstore.options.GetOptions;
+import org.jclouds.blobstore.options.ListContainerOptions;
+import org.jclouds.blobstore.options.PutOptions;
+import org.jclouds.blobstore.util.ForwardingBlobStore;
+import org.jclouds.domain.Location;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.io.Payload;
+
+import com.jortage.poolmgr.metrics.Counter;
+import com.jortage.poolmgr.metrics.Histogram;
+import com.jortage.poolmgr.metrics.Metrics;
+import com.jortage.poolmgr.util.AdaptiveRateLimiter;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Puts every request to a backend through an {@link AdaptiveRateLimiter}, so we go as fast as
+ * the provider lets us and no faster. Throttled requests are retried if it's safe to do so
+ * (i.e. there's no payload, or the payload can be replayed).
+ */
+public class RateLimitedBlobStore extends ForwardingBlobStore {
+
+	private static final int MAX_ATTEMPTS = 4;
+
+	private enum Op {
+		LIST, CONTAINER_EXISTS, CREATE_CONTAINER_IN_LOCATION, GET_CONTAINER_ACCESS,
+		SET_CONTAINER_ACCESS, CLEAR_CONTAINER, DELETE_CONTAINER, DELETE_CONTAINER_IF_EMPTY,
+		DIRECTORY_EXISTS, CREATE_DIRECTORY, DELETE_DIRECTORY, BLOB_EXISTS, PUT_BLOB, COPY_BLOB,
+		BLOB_METADATA, GET_BLOB, REMOVE_BLOB, REMOVE_BLOBS, GET_BLOB_ACCESS, SET_BLOB_ACCESS,
+		COUNT_BLOBS, INITIATE_MULTIPART_UPLOAD, ABORT_MULTIPART_UPLOAD, COMPLETE_MULTIPART_UPLOAD,
+		UPLOAD_MULTIPART_PART, LIST_MULTIPART_UPLOAD, LIST_MULTIPART_UPLOADS, DOWNLOAD_BLOB,
+		STREAM_BLOB;
+
+		private final String label = name().toLowerCase(Locale.ROOT);
+	}
+
+	private final AdaptiveRateLimiter limiter;
+	private final String name;
+	private final Histogram[] timers = new Histogram[Op.values().length];
+	private final Counter throttled;
+
+	public RateLimitedBlobStore(BlobStore blobStore, String name, AdaptiveRateLimiter limiter) {
+		super(blobStore);
+		this.name = name;
+		this.limiter = limiter;
+		for (Op op : Op.values()) {
+			timers[op.ordinal()] = Metrics.histogram("poolmgr_backend_request_seconds", "Time spent on requests to backends, including waiting for the rate limiter and retries",
+					"backend", name, "op", op.label);
+		}
+		throttled = Metrics.counter("poolmgr_backend_throttled_total", "Requests that backends told us to slow down on", "backend", name);
+		Metrics.gauge("poolmgr_backend_rate_limit", "Current request rate limit for each backend, in requests per second", limiter::getRate, "backend", name);
+		Metrics.gauge("poolmgr_backend_rate_limit_waiting", "Threads waiting on each backend's rate limiter", limiter::getQueueDepth, "backend", name);
+	}
+
+	public AdaptiveRateLimiter getLimiter() {
+		return limiter;
+	}
+
+	private <T> T call(Op op, boolean retryable, Supplier<T> s) {
+		long start = System.nanoTime();
+		try {
+			return call(retryable, s);
+		} finally {
+			timers[op.ordinal()].observeSince(start);
+		}
+	}
+
+	private <T> T call(boolean retryable, Supplier<T> s) {
+		for (int attempt = 1; ; attempt++) {
+			limiter.acquire();
+			try {
+				T t = s.get();
+				limiter.onSuccess();
+				return t;
+			} catch (RuntimeException e) {
+				if (!isThrottle(e)) {
+					// a 404 or whatever still means the backend was willing to talk to us
+					limiter.onSuccess();
+					throw e;
+				}
+				throttled.inc();
+				if (limiter.onThrottled()) {
+					System.err.println("Backend "+name+" is throttling us, slowing down to "+String.format("%.1f", limiter.getRate())+" req/s");
+				}
+				if (!retryable || attempt >= MAX_ATTEMPTS) throw e;
+			}
+		}
+	}
+
+	private void run(Op op, boolean retryable, Runnable r) {
+		call(op, retryable, () -> {
+			r.run();
+			return null;
+		});
+	}
+
+	private static boolean isThrottle(Throwable t) {
+		for (Throwable cause : Throwables.getCausalChain(t)) {
+			if (cause instanceof AWSResponseException) {
+				AWSResponseException are = (AWSResponseException)cause;
+				if (are.getError() != null && "SlowDown".equals(are.getError().getCode())) return true;
+			}
+			if (cause instanceof HttpResponseException) {
+				HttpResponseException hre = (HttpResponseException)cause;
+				if (hre.getResponse() != null) {
+					int code = hre.getResponse().getStatusCode();
+					if (code == 429 || code == 503) return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private static boolean isRepeatable(Payload payload) {
+		return payload != null && payload.isRepeatable();
+	}
+
+	@Override
+	public PageSet<? extends StorageMetadata> list() {
+		return call(Op.LIST, true, () -> delegate().list());
+	}
+
+	@Override
+	public boolean containerExists(String container) {
+		return call(Op.CONTAINER_EXISTS, true, () -> delegate().containerExists(container));
+	}
+
+	@Override
+	public boolean createContainerInLocation(Location location, String container) {
+		return call(Op.CREATE_CONTAINER_IN_LOCATION, true, () -> delegate().createContainerInLocation(location, container));
+	}
+
+	@Override
+	public boolean createContainerInLocation(Location location, String container, CreateContainerOptions options) {
+		return call(Op.CREATE_CONTAINER_IN_LOCATION, true, () -> delegate().createContainerInLocation(location, container, options));
+	}
+
+	@Override
+	public ContainerAccess getContainerAccess(String container) {
+		return call(Op.GET_CONTAINER_ACCESS, true, () -> delegate().getContainerAccess(container));
+	}
+
+	@Override
+	public void setContainerAccess(String container, ContainerAccess access) {
+		run(Op.SET_CONTAINER_ACCESS, true, () -> delegate().setContainerAccess(container, access));
+	}
+
+	@Override
+	public PageSet<? extends StorageMetadata> list(String container) {
+		return call(Op.LIST, true, () -> delegate().list(container));
+	}
+
+	@Override
+	public PageSet<? extends StorageMetadata> list(String container, ListContainerOptions options) {
+		return call(Op.LIST, true, () -> delegate().list(container, options));
+	}
+
+	@Override
+	public void clearContainer(String container) {
+		run(Op.CLEAR_CONTAINER, true, () -> delegate().clearContainer(container));
+	}
+
+	@Override
+	public void clearContainer(String container, ListContainerOptions options) {
+		run(Op.CLEAR_CONTAINER, true, () -> delegate().clearContainer(container, options));
+	}
+
+	@Override
+	public void deleteContainer(String container) {
+		run(Op.DELETE_CONTAINER, true, () -> delegate().deleteContainer(container));
+	}
+
+	@Override
+	public boolean deleteContainerIfEmpty(String container) {
+		return call(Op.DELETE_CONTAINER_IF_EMPTY, true, () -> delegate().deleteContainerIfEmpty(container));
+	}
+
+	@Override
+	@SuppressWarnings("deprecation")
+	public boolean directoryExists(String container, String directory) {
+		return call(Op.DIRECTORY_EXISTS, true, () -> delegate().directoryExists(container, directory));
+	}
+
+	@Override
+	@SuppressWarnings("deprecation")
+	public void createDirectory(String container, String directory) {
+		run(Op.CREATE_DIRECTORY, true, () -> delegate().createDirectory(container, directory));
+	}
+
+	@Override
+	@SuppressWarnings("deprecation")
+	public void deleteDirectory(String container, String directory) {
+		run(Op.DELETE_DIRECTORY, true, () -> delegate().deleteDirectory(container, directory));
+	}
+
+	@Override
+	public boolean blobExists(String container, String name) {
+		return call(Op.BLOB_EXISTS, true, () -> delegate().blobExists(container, name));
+	}
+
+	@Override
+	public String putBlob(String container, Blob blob) {
+		return call(Op.PUT_BLOB, isRepeatable(blob.getPayload()), () -> delegate().putBlob(container, blob));
+	}
+
+	@Override
+	public String putBlob(String container, Blob blob, PutOptions options) {
+		return call(Op.PUT_BLOB, isRepeatable(blob.getPayload()), () -> delegate().putBlob(container, blob, options));
+	}
+
+	@Override
+	public String copyBlob(String fromContainer, String fromName, String toContainer, String toName, CopyOptions options) {
+		return call(Op.COPY_BLOB, true, () -> delegate().copyBlob(fromContainer, fromName, toContainer, toName, options));
+	}
+
+	@Override
+	public BlobMetadata blobMetadata(String container, String name) {
+		return call(Op.BLOB_METADATA, true, () -> delegate().blobMetadata(container, name));
+	}
+
+	@Override
+	public Blob getBlob(String container, String name) {
+		return call(Op.GET_BLOB, true, () -> delegate().getBlob(container, name));
+	}
+
+	@Override
+	public Blob getBlob(String container, String name, GetOptions options) {
+		return call(Op.GET_BLOB, true, () -> delegate().getBlob(container, name, options));
+	}
+
+	@Override
+	public void removeBlob(String container, String name) {
+		run(Op.REMOVE_BLOB, true, () -> delegate().removeBlob(container, name));
+	}
+
+	@Override
+	public void removeBlobs(String container, Iterable<String> names) {
+		run(Op.REMOVE_BLOBS, true, () -> delegate().removeBlobs(container, names));
+	}
+
+	@Override
+	public BlobAccess getBlobAccess(String container, String name) {
+		return call(Op.GET_BLOB_ACCESS, true, () -> delegate().getBlobAccess(container, name));
+	}
+
+	@Override
+	public void setBlobAccess(String container, String name, BlobAccess access) {
+		run(Op.SET_BLOB_ACCESS, true, () -> delegate().setBlobAccess(container, name, access));
+	}
+
+	@Override
+	public long countBlobs(String container) {
+		return call(Op.COUNT_BLOBS, true, () -> delegate().countBlobs(container));
+	}
+
+	@Override
+	public long countBlobs(String container, ListContainerOptions options) {
+		return call(Op.COUNT_BLOBS, true, () -> delegate().countBlobs(container, options));
+	}
+
+	@Override
+	public MultipartUpload initiateMultipartUpload(String container, BlobMetadata blobMetadata, PutOptions options) {
+		return call(Op.INITIATE_MULTIPART_UPLOAD, true, () -> delegate().initiateMultipartUpload(container, blobMetadata, options));
+	}
+
+	@Override
+	public void abortMultipartUpload(MultipartUpload mpu) {
+		run(Op.ABORT_MULTIPART_UPLOAD, true, () -> delegate().abortMultipartUpload(mpu));
+	}
+
+	@Override
+	public String completeMultipartUpload(MultipartUpload mpu, List<MultipartPart> parts) {
+		return call(Op.COMPLETE_MULTIPART_UPLOAD, true, () -> delegate().completeMultipartUpload(mpu, parts));
+	}
+
+	@Override
+	public MultipartPart uploadMultipartPart(MultipartUpload mpu, int partNumber, Payload payload) {
+		return call(Op.UPLOAD_MULTIPART_PART, isRepeatable(payload), () -> delegate().uploadMultipartPart(mpu, partNumber, payload));
+	}
+
+	@Override
+	public List<MultipartPart> listMultipartUpload(MultipartUpload mpu) {
+		return call(Op.LIST_MULTIPART_UPLOAD, true, () -> delegate().listMultipartUpload(mpu));
+	}
+
+	@Override
+	public List<MultipartUpload> listMultipartUploads(String container) {
+		return call(Op.LIST_MULTIPART_UPLOADS, true, () -> delegate().listMultipartUploads(container));
+	}
+
+	@Override
+	public void downloadBlob(String container, String name, File destination) {
+		run(Op.DOWNLOAD_BLOB, true, () -> delegate().downloadBlob(container, name, destination));
+	}
+
+	@Override
+	public void downloadBlob(String container, String name, File destination, ExecutorService executor) {
+		run(Op.DOWNLOAD_BLOB, true, () -> delegate().downloadBlob(container, name, destination, executor));
+	}
+
+	@Override
+	public InputStream streamBlob(String container, String name) {
+		return call(Op.STREAM_BLOB, true, () -> delegate().streamBlob(container, name));
+	}
+
+	@Override
+	public InputStream streamBlob(String container, String name, ExecutorService executor) {
+		return call(Op.STREAM_BLOB, true, () -> delegate().streamBlob(container, name, executor));
+	}
+
+}
@@ -2,8 +2,10 @@ package com.jortage.poolmgr.http;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Pattern;
 
+import jakarta.servlet.AsyncContext;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
@@ -14,6 +16,9 @@ import org.jclouds.blobstore.domain.Blob;
 
 import com.jortage.poolmgr.Poolmgr;
 import com.jortage.poolmgr.Queries;
+import com.jortage.poolmgr.metrics.Counter;
+import com.jortage.poolmgr.metrics.Histogram;
+import com.jortage.poolmgr.metrics.Metrics;
 
 import com.google.common.base.Splitter;
 import com.google.common.hash.HashCode;
@@ -25,6 +30,17 @@ public final class RedirHandler extends AbstractHandler {
 	private static final Splitter REDIR_SPLITTER = Splitter.on('/').limit(2).omitEmptyStrings();
 	// same regex on the CDN
 	private static final Pattern VALID_EXTENSION = Pattern.compile("^(\\.[a-zA-Z0-9.]{2,8})?$");
+	private static final String WAITED_ATTRIBUTE = "com.jortage.poolmgr.waited";
+
+	private static final Histogram LOOKUP_TIME = Metrics.histogram("poolmgr_redirect_seconds", "Time spent looking up redirects");
+	private static final Counter FOUND = redirects("found");
+	private static final Counter NOT_FOUND = redirects("not_found");
+	private static final Counter WAITED = redirects("waited");
+	private static final Counter DUMP = redirects("dump");
+
+	private static Counter redirects(String result) {
+		return Metrics.counter("poolmgr_redirects_total", "Redirect requests, by result; waited counts requests parked on an in-progress upload", "result", result);
+	}
 
 	private final BlobStore dumpsStore;
 
@@ -57,54 +73,66 @@ public final class RedirHandler extends AbstractHandler {
 				} else {
 					response.sendError(404);
 				}
+				DUMP.inc();
 				return;
 			}
 			Poolmgr.reloadConfigIfChanged();
+			CompletableFuture<Void> pending = Poolmgr.provisionalMaps.get(Poolmgr.provisionalKey(identity, name));
+			if (pending != null && !pending.isDone()) {
+				// someone's uploading this right now; park the request until they're done rather
+				// than tie up a thread, then come back through here to try again
+				AsyncContext ctx = request.startAsync();
+				ctx.setTimeout(0);
+				request.setAttribute(WAITED_ATTRIBUTE, Boolean.TRUE);
+				WAITED.inc();
+				pending.whenComplete((v, t) -> ctx.dispatch());
+				return;
+			}
+			long start = System.nanoTime();
 			try {
-				boolean waited = false;
-				while (true) {
-					Object mutex = null;
-					synchronized (Poolmgr.provisionalMaps) {
-						mutex = Poolmgr.provisionalMaps.get(identity, name);
-					}
-					if (mutex == null) break;
-					waited = true;
-					synchronized (mutex) {
-						try {
-							mutex.wait();
-						} catch (InterruptedException e) {}
-					}
-				}
-				if (waited) {
+				if (request.getAttribute(WAITED_ATTRIBUTE) != null) {
 					response.setHeader("Jortage-Waited", "true");
 				}
-				HashCode hash = Queries.getMap(Poolmgr.dataSource, identity, name);
+				HashCode hash = Queries.getMapCached(Poolmgr.dataSource, identity, name);
 				response.setHeader("Cache-Control", "public");
-				if (Poolmgr.useNewUrls) {
-					int dotIdx = name.indexOf('.', name.lastIndexOf('/')+1);
-					String ext = "";
-					if (dotIdx != -1) {
-						ext = name.substring(dotIdx);
-					}
-					while (!ext.isEmpty() && !VALID_EXTENSION.matcher(ext).matches()) {
-						int ind = ext.indexOf('.', 1);
-						if (ind == -1) {
-							// can't use this extension, drop it
-							ext = "";
-						} else {
-							// reduce the extension until it is valid
-							ext = ext.substring(ind);
-						}
-					}
-					String b64 = B64URLNP.encode(hash.asBytes());
-					response.setHeader("Location", Poolmgr.publicHost+"/blob2/"+b64.substring(0, 16)+"/"+b64.substring(16, b64.length()-8)+"/"+b64.substring(b64.length()-8)+ext);
-				} else {
-					response.setHeader("Location", Poolmgr.publicHost+"/"+Poolmgr.hashToPath(hash.toString()));
-				}
+				response.setHeader("Location", buildRedirectUrl(Poolmgr.publicHost, Poolmgr.useNewUrls, name, hash));
 				response.setStatus(301);
+				FOUND.inc();
 			} catch (IllegalArgumentException e) {
 				response.sendError(404);
+				NOT_FOUND.inc();
+			} finally {
+				LOOKUP_TIME.observeSince(start);
+			}
+		}
+	}
+
+	/**
+	 * Build the public URL that a request for {@code name} should be redirected to, given it maps
+	 * to {@code hash}. New-style URLs keep the file extension (if the CDN will accept it) so that
+	 * browsers and media players guess the right type.
+	 */
+	public static String buildRedirectUrl(String publicHost, boolean useNewUrls, String name, HashCode hash) {
+		if (useNewUrls) {
+			int dotIdx = name.indexOf('.', name.lastIndexOf('/')+1);
+			String ext = "";
+			if (dotIdx != -1) {
+				ext = name.substring(dotIdx);
 			}
+			while (!ext.isEmpty() && !VALID_EXTENSION.matcher(ext).matches()) {
+				int ind = ext.indexOf('.', 1);
+				if (ind == -1) {
+					// can't use this extension, drop it
+					ext = "";
+				} else {
+					// reduce the extension until it is valid
+					ext = ext.substring(ind);
+				}
+			}
+			String b64 = B64URLNP.encode(hash.asBytes());
+			return publicHost+"/blob2/"+b64.substring(0, 16)+"/"+b64.substring(16, b64.length()-8)+"/"+b64.substring(b64.length()-8)+ext;
+		} else {
+			return publicHost+"/"+Poolmgr.hashToPath(hash.toString());
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,26 @@
+package com.jortage.poolmgr.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonically increasing count. Just a LongAdder with a name, really.
+ */
+public final class Counter {
+
+	private final LongAdder adder = new LongAdder();
+
+	Counter() {}
+
+	public void inc() {
+		adder.increment();
+	}
+
+	public void add(long n) {
+		adder.add(n);
+	}
+
+	public long get() {
+		return adder.sum();
+	}
+
+}
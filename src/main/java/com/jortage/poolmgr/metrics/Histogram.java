@@ -0,0 +1,56 @@
+package com.jortage.poolmgr.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram with fixed buckets. Recording is a binary search and two LongAdder bumps,
+ * so it doesn't allocate or take any locks.
+ */
+public final class Histogram {
+
+	// upper bounds in nanoseconds, from 500us to a minute
+	static final long[] BOUNDS = {
+			500_000L, 1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L,
+			100_000_000L, 250_000_000L, 500_000_000L, 1_000_000_000L, 2_500_000_000L,
+			5_000_000_000L, 10_000_000_000L, 30_000_000_000L, 60_000_000_000L,
+	};
+
+	// one more than BOUNDS, for +Inf
+	private final LongAdder[] buckets = new LongAdder[BOUNDS.length+1];
+	private final LongAdder sumNanos = new LongAdder();
+
+	Histogram() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void observeNanos(long nanos) {
+		int idx = Arrays.binarySearch(BOUNDS, nanos);
+		// an exact match belongs in that bucket (le is inclusive), otherwise the insertion point
+		if (idx < 0) idx = -idx-1;
+		buckets[idx].increment();
+		sumNanos.add(nanos);
+	}
+
+	/**
+	 * Record the time since {@code startNanos}, which came from {@link System#nanoTime}.
+	 */
+	public void observeSince(long startNanos) {
+		observeNanos(System.nanoTime()-startNanos);
+	}
+
+	long[] snapshotBuckets() {
+		long[] out = new long[buckets.length];
+		for (int i = 0; i < buckets.length; i++) {
+			out[i] = buckets[i].sum();
+		}
+		return out;
+	}
+
+	long sumNanos() {
+		return sumNanos.sum();
+	}
+
+}
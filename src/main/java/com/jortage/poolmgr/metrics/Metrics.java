@@ -0,0 +1,140 @@
+package com.jortage.poolmgr.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Where all the metrics live, and how they get written out in the Prometheus text format.
+ * <p>
+ * Metrics are meant to be looked up once (e.g. into a static final) and then recorded into
+ * directly; nothing here is on the hot path. Asking for the same name and labels twice gets you
+ * the same metric back, so it's safe to register things again when the config is reloaded.
+ * Labels are given as alternating names and values.
+ */
+public final class Metrics {
+
+	private enum Type {
+		COUNTER, GAUGE, HISTOGRAM;
+		String promName() {
+			return name().toLowerCase();
+		}
+	}
+
+	private static final class Family {
+		private final String name;
+		private final String help;
+		private final Type type;
+		// rendered labels -> Counter, Histogram, LongSupplier or DoubleSupplier
+		private final Map<String, Object> children = Maps.newLinkedHashMap();
+		private Family(String name, String help, Type type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+
+	private static final Map<String, Family> families = Maps.newLinkedHashMap();
+
+	public static synchronized Counter counter(String name, String help, String... labels) {
+		return (Counter)family(name, help, Type.COUNTER).children.computeIfAbsent(renderLabels(labels), (k) -> new Counter());
+	}
+
+	public static synchronized Histogram histogram(String name, String help, String... labels) {
+		return (Histogram)family(name, help, Type.HISTOGRAM).children.computeIfAbsent(renderLabels(labels), (k) -> new Histogram());
+	}
+
+	/**
+	 * Register a counter that's kept somewhere else, and read when we're scraped.
+	 */
+	public static synchronized void counter(String name, String help, LongSupplier supplier, String... labels) {
+		family(name, help, Type.COUNTER).children.put(renderLabels(labels), supplier);
+	}
+
+	/**
+	 * Register a gauge, which is read when we're scraped.
+	 */
+	public static synchronized void gauge(String name, String help, DoubleSupplier supplier, String... labels) {
+		family(name, help, Type.GAUGE).children.put(renderLabels(labels), supplier);
+	}
+
+	public static synchronized void write(Appendable out) throws IOException {
+		for (Family f : families.values()) {
+			out.append("# HELP ").append(f.name).append(' ').append(f.help).append('\n');
+			out.append("# TYPE ").append(f.name).append(' ').append(f.type.promName()).append('\n');
+			for (Map.Entry<String, Object> en : f.children.entrySet()) {
+				String labels = en.getKey();
+				Object child = en.getValue();
+				if (child instanceof Counter) {
+					writeSample(out, f.name, labels, Long.toString(((Counter)child).get()));
+				} else if (child instanceof LongSupplier) {
+					writeSample(out, f.name, labels, Long.toString(((LongSupplier)child).getAsLong()));
+				} else if (child instanceof DoubleSupplier) {
+					double d;
+					try {
+						d = ((DoubleSupplier)child).getAsDouble();
+					} catch (RuntimeException e) {
+						// e.g. the thing it's looking at went away during a reload
+						d = Double.NaN;
+					}
+					writeSample(out, f.name, labels, formatDouble(d));
+				} else if (child instanceof Histogram) {
+					Histogram h = (Histogram)child;
+					long[] buckets = h.snapshotBuckets();
+					long cumulative = 0;
+					for (int i = 0; i < buckets.length; i++) {
+						cumulative += buckets[i];
+						String le = i < Histogram.BOUNDS.length ? formatDouble(Histogram.BOUNDS[i]/1e9) : "+Inf";
+						writeSample(out, f.name+"_bucket", addLabel(labels, "le", le), Long.toString(cumulative));
+					}
+					writeSample(out, f.name+"_sum", labels, formatDouble(h.sumNanos()/1e9));
+					writeSample(out, f.name+"_count", labels, Long.toString(cumulative));
+				}
+			}
+		}
+	}
+
+	private static Family family(String name, String help, Type type) {
+		Family f = families.computeIfAbsent(name, (k) -> new Family(name, help, type));
+		if (f.type != type) throw new IllegalArgumentException(name+" is already registered as a "+f.type.promName());
+		return f;
+	}
+
+	private static void writeSample(Appendable out, String name, String labels, String value) throws IOException {
+		out.append(name).append(labels).append(' ').append(value).append('\n');
+	}
+
+	private static String renderLabels(String... labels) {
+		if (labels.length % 2 != 0) throw new IllegalArgumentException("Labels must be name/value pairs");
+		if (labels.length == 0) return "";
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < labels.length; i += 2) {
+			if (i > 0) sb.append(',');
+			sb.append(labels[i]).append("=\"").append(escape(labels[i+1])).append('"');
+		}
+		return sb.append('}').toString();
+	}
+
+	private static String addLabel(String labels, String name, String value) {
+		String label = name+"=\""+escape(value)+"\"";
+		if (labels.isEmpty()) return "{"+label+"}";
+		return labels.substring(0, labels.length()-1)+","+label+"}";
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static String formatDouble(double d) {
+		if (Double.isNaN(d)) return "NaN";
+		if (Double.isInfinite(d)) return d > 0 ? "+Inf" : "-Inf";
+		if (d == Math.rint(d) && Math.abs(d) < 1e15) return Long.toString((long)d);
+		return Double.toString(d);
+	}
+
+	private Metrics() {}
+
+}
@@ -0,0 +1,39 @@
+package com.jortage.poolmgr.metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+/**
+ * Serves {@link Metrics} for Prometheus to scrape.
+ */
+public final class MetricsHandler extends AbstractHandler {
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+		baseRequest.setHandled(true);
+		if (!target.equals("/metrics")) {
+			response.sendError(404);
+			return;
+		}
+		if (!request.getMethod().equals("GET") && !request.getMethod().equals("HEAD")) {
+			response.sendError(405);
+			return;
+		}
+		StringBuilder sb = new StringBuilder(16384);
+		Metrics.write(sb);
+		response.setStatus(200);
+		response.setHeader("Cache-Control", "no-store");
+		response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+		byte[] bys = sb.toString().getBytes(StandardCharsets.UTF_8);
+		response.setContentLength(bys.length);
+		if (request.getMethod().equals("HEAD")) return;
+		response.getOutputStream().write(bys);
+	}
+
+}
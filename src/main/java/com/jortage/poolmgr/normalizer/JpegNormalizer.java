@@ -0,0 +1,53 @@
+package com.jortage.poolmgr.normalizer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+
+import com.jortage.poolmgr.util.JpegSurgeon;
+import com.jortage.poolmgr.util.JpegSurgeon.Marker;
+import com.jortage.poolmgr.util.MetadataDates;
+
+/**
+ * Blanks the modification dates in EXIF and XMP (APP1) segments. Everything from the start of
+ * the image data on is copied through untouched.
+ */
+public class JpegNormalizer implements Normalizer {
+
+	@Override
+	public boolean matches(byte[] header, int length) {
+		return length >= 3 && (header[0]&0xFF) == 0xFF && (header[1]&0xFF) == Marker.SOI && (header[2]&0xFF) == 0xFF;
+	}
+
+	@Override
+	public void normalize(byte[] header, int length, InputStream in, OutputStream out) throws IOException {
+		out.write(header, 0, 2);
+		in = new SequenceInputStream(new ByteArrayInputStream(header, 2, length-2), in);
+		try (var js = new JpegSurgeon(in, out)) {
+			while (true) {
+				int marker = js.readMarker();
+				if (marker == Marker.END) {
+					break;
+				} else if (marker == Marker.APP1) {
+					byte[] data = js.readSegmentData();
+					if (data == null) break;
+					if (MetadataDates.startsWith(data, MetadataDates.EXIF_HEADER)) {
+						MetadataDates.blankExif(data, MetadataDates.EXIF_HEADER.length, data.length-MetadataDates.EXIF_HEADER.length);
+					} else if (MetadataDates.startsWith(data, MetadataDates.XMP_HEADER)) {
+						MetadataDates.blankXmp(data, MetadataDates.XMP_HEADER.length, data.length-MetadataDates.XMP_HEADER.length);
+					}
+					js.writeSegment(data);
+				} else if (marker == Marker.SOS || marker == Marker.EOI || marker == Marker.GARBAGE) {
+					// image data, the end, or something we don't understand; hands off from here
+					js.copyRest();
+					break;
+				} else {
+					js.copySegment();
+				}
+			}
+		}
+	}
+
+}
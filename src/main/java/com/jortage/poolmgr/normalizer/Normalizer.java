@@ -0,0 +1,38 @@
+package com.jortage.poolmgr.normalizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Rewrites a particular kind of file so that copies which differ only in metadata nobody cares
+ * about (save timestamps and the like) come out byte-identical, and so dedupe.
+ * <p>
+ * Normalizers are picked by the first {@link #HEADER_LENGTH} bytes of the file. They must stream,
+ * holding no more than a bounded amount of the file in memory, and must pass through anything
+ * they don't understand unchanged rather than fail. That includes files that are cut off or
+ * turn to garbage partway through; what came before is normalized as usual, and everything
+ * from there on is copied through as it was.
+ */
+public interface Normalizer {
+
+	/**
+	 * How many bytes of the file are read to pick a normalizer. Enough for RIFF's form type.
+	 */
+	int HEADER_LENGTH = 12;
+
+	/**
+	 * @param header the start of the file
+	 * @param length how much of {@code header} is valid; less than {@link #HEADER_LENGTH} if
+	 * 		the file is that short
+	 */
+	boolean matches(byte[] header, int length);
+
+	/**
+	 * Copy the file from {@code in} to {@code out}, normalizing it along the way. The first
+	 * {@code length} bytes of the file have already been read from {@code in} into
+	 * {@code header}, and haven't been written to {@code out}.
+	 */
+	void normalize(byte[] header, int length, InputStream in, OutputStream out) throws IOException;
+
+}
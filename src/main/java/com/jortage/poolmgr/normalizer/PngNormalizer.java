@@ -0,0 +1,179 @@
+package com.jortage.poolmgr.normalizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.jortage.poolmgr.util.PngSurgeon;
+import com.jortage.poolmgr.util.PngSurgeon.Chunk;
+
+import com.google.common.base.Charsets;
+import com.google.common.primitives.Longs;
+
+/**
+ * Drops tIME chunks and the date entries of tEXt chunks. A file that's cut off or stops making
+ * sense is copied through as it is from that point on.
+ * <p>
+ * Everything it needs is kept per thread and reused, so once warmed up a file goes through
+ * without allocating.
+ * <p>
+ * tEXt chunks are rewritten exactly the way the stream-based version of this did it, quirks
+ * included, so files keep hashing the same as the ones already in the pool.
+ */
+public class PngNormalizer implements Normalizer {
+
+	// tEXt chunks this big or bigger are passed through untouched
+	private static final int MAX_TEXT_SIZE = 16384;
+	// 79 bytes of keyword plus the NUL
+	private static final int MAX_KEY_SIZE = 80;
+	// values were copied in pieces this big
+	private static final int PIECE_SIZE = 512;
+	private static final byte[] NUL = { 0 };
+
+	private static final byte[][] DATE_KEYS = {
+			// useless entries that destroy dedupe
+			// (create is the closest to useful, but imagemagick will inject it in files that are missing a timestamp)
+			"date:timestamp".getBytes(Charsets.ISO_8859_1),
+			"date:modify".getBytes(Charsets.ISO_8859_1),
+			"date:create".getBytes(Charsets.ISO_8859_1),
+	};
+
+	private static final class Scratch {
+		private final PngSurgeon surgeon = new PngSurgeon();
+		private final byte[] data = new byte[MAX_TEXT_SIZE];
+		private final byte[] piece = new byte[PIECE_SIZE];
+		// rewritten chunks can come out bigger than they went in; grows as needed
+		private byte[] out = new byte[MAX_TEXT_SIZE];
+	}
+
+	private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+	@Override
+	public boolean matches(byte[] header, int length) {
+		return length >= 8 && Longs.fromByteArray(header) == PngSurgeon.PNG_MAGIC;
+	}
+
+	@Override
+	public void normalize(byte[] header, int length, InputStream in, OutputStream out) throws IOException {
+		Scratch s = scratch.get();
+		// the piece buffer's leftovers end up in the output, so every file has to start from zeroes
+		Arrays.fill(s.piece, (byte)0);
+		out.write(header, 0, 8);
+		// the surgeon wants to start right after the signature
+		try (var ps = s.surgeon.reset(in, out, header, 8, length-8)) {
+			while (true) {
+				int type = ps.readChunkType();
+				if (type == -1) break;
+				if (type == Chunk.tIME) {
+					// useless chunk that destroys dedupe
+					ps.skipChunkData();
+				} else if (type == Chunk.tEXt && ps.getChunkLength() < MAX_TEXT_SIZE) {
+					int len = ps.readChunkData(s.data);
+					if (len == -1) break;
+					if (!ps.isLastCrcValid()) {
+						// uhh, okay. sure, you can enjoy that one
+						// (the data's already been read, so write it back as it was)
+						ps.writeChunk(Chunk.tEXt, s.data, 0, len, ps.getLastCrc());
+						continue;
+					}
+					int outLen = rewriteText(s, len);
+					if (outLen == -1) {
+						ps.writeChunk(Chunk.tEXt, s.data, 0, len);
+					} else if (outLen > 0) {
+						ps.writeChunk(Chunk.tEXt, s.out, 0, outLen);
+					}
+					// otherwise it was all dates; drop the whole chunk
+				} else {
+					// (including big tEXt chunks; alright have fun with that)
+					ps.copyChunk();
+					if (type == Chunk.IEND) break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rewrite the entries of a tEXt chunk (keyword, NUL, text, optionally followed by NUL and more
+	 * entries) into {@code s.out}, minus any with date keywords.
+	 * <p>
+	 * Every kept entry is written as keyword, NUL, text, NUL, and text is copied in 512 byte
+	 * pieces through {@code s.piece}; a piece that doesn't end in a NUL (e.g. the last text in
+	 * the chunk, which normally isn't terminated) is written out in full, including whatever
+	 * was left in the buffer from earlier. That's a bug, but it's the bug every PNG in the pool
+	 * was stored with, so it has to be kept for them to keep deduplicating.
+	 * @return how much was written to {@code s.out} (0 means drop the chunk), or -1 if the chunk
+	 * 		is corrupt, in which case it should be left as it is
+	 */
+	private static int rewriteText(Scratch s, int len) {
+		byte[] data = s.data;
+		int pos = 0;
+		int outLen = 0;
+		while (true) {
+			int keyLen = readPiece(data, pos, len, s.piece, MAX_KEY_SIZE);
+			if (keyLen == -1) {
+				// corrupted tEXt chunk
+				return -1;
+			}
+			if (keyLen == 0) {
+				// EOS
+				break;
+			}
+			boolean copy = !isDateKey(data, pos, keyLen);
+			if (copy) outLen = put(s, outLen, data, pos, keyLen+1);
+			pos += keyLen+1;
+			while (true) {
+				int n = readPiece(data, pos, len, s.piece, PIECE_SIZE);
+				if (n == -1) {
+					if (copy) outLen = put(s, outLen, s.piece, 0, PIECE_SIZE);
+					pos = Math.min(len, pos+PIECE_SIZE);
+				} else {
+					if (copy) outLen = put(s, outLen, s.piece, 0, n);
+					pos = Math.min(len, pos+n+1);
+					break;
+				}
+			}
+			if (copy) outLen = put(s, outLen, NUL, 0, 1);
+		}
+		return outLen;
+	}
+
+	/**
+	 * Copy up to {@code limit} bytes of {@code data[pos..len)} into {@code piece}.
+	 * @return the index of the first NUL in what was copied, 0 if there was nothing to copy, or
+	 * 		-1 if there's no NUL
+	 */
+	private static int readPiece(byte[] data, int pos, int len, byte[] piece, int limit) {
+		int count = Math.min(limit, len-pos);
+		if (count == 0) return 0;
+		System.arraycopy(data, pos, piece, 0, count);
+		return indexOfNul(piece, 0, count);
+	}
+
+	private static int put(Scratch s, int outLen, byte[] src, int ofs, int len) {
+		if (outLen+len > s.out.length) {
+			s.out = Arrays.copyOf(s.out, Math.max(s.out.length*2, outLen+len));
+		}
+		System.arraycopy(src, ofs, s.out, outLen, len);
+		return outLen+len;
+	}
+
+	private static int indexOfNul(byte[] data, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (data[i] == 0) return i;
+		}
+		return -1;
+	}
+
+	private static boolean isDateKey(byte[] data, int ofs, int len) {
+		outer: for (byte[] key : DATE_KEYS) {
+			if (key.length != len) continue;
+			for (int i = 0; i < len; i++) {
+				if (data[ofs+i] != key[i]) continue outer;
+			}
+			return true;
+		}
+		return false;
+	}
+
+}
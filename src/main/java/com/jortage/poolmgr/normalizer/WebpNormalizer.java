@@ -0,0 +1,60 @@
+package com.jortage.poolmgr.normalizer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.jortage.poolmgr.util.MetadataDates;
+import com.jortage.poolmgr.util.RiffSurgeon;
+import com.jortage.poolmgr.util.RiffSurgeon.Chunk;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Blanks the modification dates in WebP EXIF and XMP chunks. The chunks are kept (and keep their
+ * sizes) rather than dropped, since dropping them would mean rewriting the RIFF size at the very
+ * start of the file, which we've already sent on by the time we get to them.
+ */
+public class WebpNormalizer implements Normalizer {
+
+	private static final byte[] RIFF = "RIFF".getBytes(Charsets.ISO_8859_1);
+	private static final byte[] WEBP = "WEBP".getBytes(Charsets.ISO_8859_1);
+
+	// metadata chunks bigger than this are someone's idea of a joke; pass them through
+	private static final long MAX_METADATA_SIZE = 1024*1024;
+
+	@Override
+	public boolean matches(byte[] header, int length) {
+		if (length < 12) return false;
+		for (int i = 0; i < 4; i++) {
+			if (header[i] != RIFF[i] || header[8+i] != WEBP[i]) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void normalize(byte[] header, int length, InputStream in, OutputStream out) throws IOException {
+		out.write(header, 0, 12);
+		try (var rs = new RiffSurgeon(in, out)) {
+			while (true) {
+				int type = rs.readChunkType();
+				if (type == -1) break;
+				if ((type == Chunk.EXIF || type == Chunk.XMP) && rs.getChunkLength() <= MAX_METADATA_SIZE) {
+					byte[] data = rs.readChunkData();
+					if (data == null) break;
+					if (type == Chunk.EXIF) {
+						// the spec says this is bare TIFF data, but some writers include the JPEG-style header
+						int ofs = MetadataDates.startsWith(data, MetadataDates.EXIF_HEADER) ? MetadataDates.EXIF_HEADER.length : 0;
+						MetadataDates.blankExif(data, ofs, data.length-ofs);
+					} else {
+						MetadataDates.blankXmp(data, 0, data.length);
+					}
+					rs.writeChunk(type, data);
+				} else {
+					rs.copyChunk();
+				}
+			}
+		}
+	}
+
+}
@@ -6,7 +6,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.security.MessageDigest;
 import java.time.Instant;
@@ -17,10 +16,17 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import kotlin.Pair;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -33,11 +39,20 @@ import org.jclouds.blobstore.domain.BlobAccess;
 import org.jclouds.blobstore.options.PutOptions;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
 import com.jortage.poolmgr.FileReprocessor;
+import com.jortage.poolmgr.KnownBlobs;
+import com.jortage.poolmgr.PoolMetrics;
+import com.jortage.poolmgr.ProvisionalUpload;
 import com.jortage.poolmgr.Poolmgr;
 import com.jortage.poolmgr.Queries;
+import com.jortage.poolmgr.Queries.BlobMissingException;
+import com.jortage.poolmgr.Queries.OriginValidators;
+import com.jortage.poolmgr.metrics.Counter;
+import com.jortage.poolmgr.metrics.Histogram;
+import com.jortage.poolmgr.metrics.Metrics;
 import com.jortage.poolmgr.util.ByteSinkSource;
 import com.jortage.poolmgr.util.FileByteSinkSource;
 import com.jortage.poolmgr.util.MemoryByteSinkSource;
@@ -55,6 +70,8 @@ import com.google.common.hash.Hashing;
 import com.google.common.hash.HashingOutputStream;
 import com.google.common.io.BaseEncoding;
 import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import okhttp3.HttpUrl;
@@ -69,7 +86,7 @@ public final class RivetHandler extends AbstractHandler {
 	private static final Splitter RIVET_AUTH_SPLITTER = Splitter.on(':').limit(3);
 	private static final CharMatcher HEX_MATCHER = CharMatcher.anyOf("0123456789abcdef");
 	
-	private static final String UA = "Jortage Rivet (+https://jortage.com/rivet.html)";
+	static final String UA = "Jortage Rivet (+https://jortage.com/rivet.html)";
 	
 	private enum Temperature {
 		FREEZING, COLD, WARM, HOT, SCALDING;
@@ -91,92 +108,192 @@ public final class RivetHandler extends AbstractHandler {
 		 */
 		FOUND,
 		/**
-		 * Someone else requested the exact same url within the past 10 minutes, so no requests
-		 * were made at all. Best case.
+		 * We'd fetched the url before, and the origin told us it hasn't changed since, so only
+		 * a conditional request was made.
+		 */
+		REVALIDATED,
+		/**
+		 * Someone else requested the exact same url recently (within the past 10 minutes, or
+		 * within freshHours if it's fallen out of memory), so no requests were made at all. Best
+		 * case.
 		 */
 		CACHED,
 	}
 	
+	private static final Counter[][] RESULT_COUNTERS = new Counter[RivetResult.values().length][Temperature.values().length];
+	static {
+		for (RivetResult rr : RivetResult.values()) {
+			for (Temperature t : Temperature.values()) {
+				RESULT_COUNTERS[rr.ordinal()][t.ordinal()] = Metrics.counter("poolmgr_rivet_results_total", "Successful Rivet requests, by result and temperature",
+						"result", rr.name().toLowerCase(Locale.ROOT), "temperature", t.name().toLowerCase(Locale.ROOT));
+			}
+		}
+	}
+	private static final Histogram RETRIEVE_TIME = Metrics.histogram("poolmgr_rivet_request_seconds", "Time spent handling Rivet requests, by endpoint", "endpoint", "retrieve");
+	private static final Histogram RETRIEVE_BATCH_TIME = Metrics.histogram("poolmgr_rivet_request_seconds", "Time spent handling Rivet requests, by endpoint", "endpoint", "retrieve_batch");
+	private static final Histogram UPLOAD_TIME = Metrics.histogram("poolmgr_rivet_request_seconds", "Time spent handling Rivet requests, by endpoint", "endpoint", "upload");
+	
+	/**
+	 * What happened when we loaded a URL. Whoever claims it first gets to report the real result;
+	 * everyone after that got it from the cache.
+	 */
+	private static final class Retrieval {
+		private final HashCode hash;
+		private final RivetResult result;
+		private final Temperature temperature;
+		private final AtomicBoolean claimed = new AtomicBoolean();
+
+		private Retrieval(HashCode hash, RivetResult result, Temperature temperature) {
+			this.hash = hash;
+			this.result = result;
+			this.temperature = temperature;
+		}
+
+		private boolean claim() {
+			return claimed.compareAndSet(false, true);
+		}
+	}
+	
+	private static final int MAX_BODY_SIZE = 8192;
+	private static final int MAX_BATCH_BODY_SIZE = 1024*1024;
+	private static final int MAX_BATCH_ITEMS = 1000;
+	private static final ExecutorService batchExecutor = Executors.newCachedThreadPool(
+			new ThreadFactoryBuilder().setNameFormat("Rivet batch worker #%d").setDaemon(true).build());
+	
 	private final Gson gson;
-	// synchronize on a mutex when loading URLs to avoid download races that would waste bandwidth
-	private final Object retrieveMutex = new Object();
-	private final Map<String, Pair<RivetResult, Temperature>> results = Maps.newHashMap();
-	private final LoadingCache<String, HashCode> urlCache = CacheBuilder.newBuilder()
-			.concurrencyLevel(1)
+	// identity -> (permit count, permits); caps how many items of one identity's batches run at once
+	private final ConcurrentMap<String, Map.Entry<Integer, Semaphore>> batchPermits = new ConcurrentHashMap<>();
+	// caps how many URLs we download at once; swapped out if the config changes
+	private Semaphore fetchPermits;
+	private int fetchPermitCount;
+	// concurrent requests for the same URL wait on a single load, and different URLs load in parallel.
+	// this is just a front for origin_validators, which remembers URLs for much longer
+	private final LoadingCache<String, Retrieval> urlCache = CacheBuilder.newBuilder()
+			.maximumSize(Poolmgr.rivetCacheSize)
 			.expireAfterWrite(10, TimeUnit.MINUTES)
-			.<String, HashCode>removalListener((n) -> {
-				synchronized (retrieveMutex) {
-					results.remove(n.getKey());
-				}
-			})
-			.build(new CacheLoader<String, HashCode>() {
+			.build(new CacheLoader<String, Retrieval>() {
 				@Override
-				public HashCode load(String url) throws Exception {
-					ByteSinkSource bss = null;
+				public Retrieval load(String url) throws Exception {
 					HttpUrl parsedUrl = HttpUrl.Companion.parse(url);
 					checkIllegalUrl(null, parsedUrl);
-					HashCode shortCircuit = checkShortCircuit(url, parsedUrl, Temperature.HOT);
+					Retrieval shortCircuit = checkShortCircuit(parsedUrl, Temperature.HOT);
 					if (shortCircuit != null) return shortCircuit;
-					try (Response headRes = client.newCall(new Request.Builder()
+					OriginValidators validators = Queries.getOriginValidators(Poolmgr.dataSource, url);
+					if (validators != null && !Queries.isMapped(Poolmgr.dataSource, validators.hash)) {
+						// what we had is gone from the pool; neither it nor a 304 is any use to us
+						validators = null;
+					}
+					if (validators != null && System.currentTimeMillis()-validators.fetchedAt < TimeUnit.HOURS.toMillis(Poolmgr.rivetFreshHours)) {
+						return new Retrieval(validators.hash, RivetResult.CACHED, Temperature.HOT);
+					}
+					Semaphore permits = getFetchPermits();
+					permits.acquire();
+					try {
+						return fetch(url, parsedUrl, validators);
+					} finally {
+						permits.release();
+					}
+				}
+
+				private Retrieval fetch(String url, HttpUrl parsedUrl, OriginValidators validators) throws Exception {
+					Request.Builder get = new Request.Builder()
 							.addHeader("User-Agent", UA)
 							.url(parsedUrl)
-							.head()
-							.build()).execute()) {
-						if (headRes.isSuccessful()) {
-							shortCircuit = checkShortCircuit(url, headRes.request().url(), Temperature.WARM);
-							if (shortCircuit != null) return shortCircuit;
-							shortCircuit = checkShortCircuit(url, headRes.networkResponse().request().url(), Temperature.WARM);
-							if (shortCircuit != null) return shortCircuit;
-							try (Response getRes = client.newCall(new Request.Builder()
-									.addHeader("User-Agent", UA)
-									.url(headRes.request().url())
-									.get()
-									.build()).execute()) {
-								if (getRes.isSuccessful()) {
-									long len = getRes.body().contentLength();
-									if (len == -1 || len > 8192) {
-										bss = new FileByteSinkSource(File.createTempFile("jortage-proxy-", ".dat"), true);
-									} else {
-										bss = new MemoryByteSinkSource();
-									}
-									OutputStream sinkOut = bss.getSink().openStream();
-									HashingOutputStream hos = new HashingOutputStream(Hashing.sha512(), sinkOut);
-									try (InputStream in = getRes.body().byteStream()) {
-										FileReprocessor.reprocess(in, hos);
-									}
-									hos.close();
-									HashCode hash = hos.hash();
-									String hashStr = hash.toString();
-									String path = Poolmgr.hashToPath(hashStr);
-									if (Queries.isMapped(Poolmgr.dataSource, hash)) {
-										results.put(url, new Pair<>(RivetResult.PRESENT, Temperature.COLD));
-									} else {
-										Blob blob = Poolmgr.backingBlobStore.blobBuilder(path)
-												.payload(bss.getSource())
-												.contentLength(bss.getSource().size())
-												.contentType(getRes.body().contentType().toString())
-												.build();
-										long size = bss.getSource().size();
-										Poolmgr.backingBlobStore.putBlob(Poolmgr.bucket, blob,
-												new PutOptions().setBlobAccess(BlobAccess.PUBLIC_READ).multipart(size > 8192));
-										Queries.putPendingBackup(Poolmgr.dataSource, hash);
-										Queries.putFilesize(Poolmgr.dataSource, hash, size);
-										results.put(url, new Pair<>(RivetResult.ADDED, Temperature.FREEZING));
-									}
-									return hash;
-								} else {
-									throw new IOException("Unsuccessful response code to GET: "+getRes.code());
-								}
-							}
-						} else {
-							throw new IOException("Unsuccessful response code to HEAD: "+headRes.code());
+							.get();
+					if (validators != null) {
+						if (validators.etag != null) get.addHeader("If-None-Match", validators.etag);
+						if (validators.lastModified != null) get.addHeader("If-Modified-Since", validators.lastModified);
+					}
+					// no HEAD first; redirects can be checked just as well on the GET before the body is read
+					try (Response getRes = client.newCall(get.build()).execute()) {
+						Retrieval shortCircuit = checkShortCircuit(getRes.request().url(), Temperature.WARM);
+						if (shortCircuit != null) return shortCircuit;
+						shortCircuit = checkShortCircuit(getRes.networkResponse().request().url(), Temperature.WARM);
+						if (shortCircuit != null) return shortCircuit;
+						if (getRes.code() == 304 && validators != null) {
+							Queries.touchOriginValidators(Poolmgr.dataSource, url);
+							return new Retrieval(validators.hash, RivetResult.REVALIDATED, Temperature.WARM);
+						}
+						if (!getRes.isSuccessful()) {
+							throw new IOException("Unsuccessful response code to GET: "+getRes.code());
+						}
+						Retrieval r = Poolmgr.streamingUploads ? fetchStreaming(getRes) : fetchToFile(getRes);
+						String etag = getRes.header("ETag");
+						String lastModified = getRes.header("Last-Modified");
+						if (etag != null && etag.length() > 255) etag = null;
+						if (lastModified != null && lastModified.length() > 64) lastModified = null;
+						Queries.putOriginValidators(Poolmgr.dataSource, url, etag, lastModified, r.hash);
+						return r;
+					}
+				}
+
+				private Retrieval fetchToFile(Response getRes) throws IOException {
+					long len = getRes.body().contentLength();
+					try (ByteSinkSource bss = len == -1 || len > 8192
+							? new FileByteSinkSource(File.createTempFile("jortage-proxy-", ".dat"), true)
+							: new MemoryByteSinkSource()) {
+						OutputStream sinkOut = bss.getSink().openStream();
+						HashCode hash;
+						try (InputStream in = getRes.body().byteStream()) {
+							hash = FileReprocessor.reprocessAndHash(in, sinkOut);
+						}
+						sinkOut.close();
+						PoolMetrics.BYTES_HASHED.add(bss.getSource().size());
+						String hashStr = hash.toString();
+						String path = Poolmgr.hashToPath(hashStr);
+						if (Queries.isMapped(Poolmgr.dataSource, hash)) {
+							PoolMetrics.UPLOADS_DEDUPLICATED.inc();
+							return new Retrieval(hash, RivetResult.PRESENT, Temperature.COLD);
+						}
+						Blob blob = Poolmgr.backingBlobStore.blobBuilder(path)
+								.payload(bss.getSource())
+								.contentLength(bss.getSource().size())
+								.contentType(getRes.body().contentType().toString())
+								.build();
+						long size = bss.getSource().size();
+						String etag = Poolmgr.backingBlobStore.putBlob(Poolmgr.bucket, blob,
+								new PutOptions().setBlobAccess(BlobAccess.PUBLIC_READ).multipart(size > 8192));
+						KnownBlobs.put(hash, etag, size);
+						Queries.begin(Poolmgr.dataSource)
+								.putPendingBackup(hash)
+								.putFilesize(hash, size)
+								.commit();
+						PoolMetrics.UPLOADS_NEW.inc();
+						return new Retrieval(hash, RivetResult.ADDED, Temperature.FREEZING);
+					}
+				}
+
+				/**
+				 * Pipe the body into a provisional upload as it's hashed, so the download and
+				 * the upload overlap and nothing touches the disk.
+				 */
+				private Retrieval fetchStreaming(Response getRes) throws IOException {
+					String contentType = getRes.body().contentType().toString();
+					ProvisionalUpload pu = new ProvisionalUpload(Poolmgr.backingBlobStore, Poolmgr.bucket, contentType, null);
+					try {
+						HashCode hash;
+						try (InputStream in = getRes.body().byteStream()) {
+							hash = FileReprocessor.reprocessAndHash(in, pu);
 						}
+						PoolMetrics.BYTES_HASHED.add(pu.getSize());
+						if (Queries.isMapped(Poolmgr.dataSource, hash)) {
+							PoolMetrics.UPLOADS_DEDUPLICATED.inc();
+							return new Retrieval(hash, RivetResult.PRESENT, Temperature.COLD);
+						}
+						String etag = pu.promote(Poolmgr.hashToPath(hash.toString()));
+						KnownBlobs.put(hash, etag, pu.getSize());
+						Queries.begin(Poolmgr.dataSource)
+								.putPendingBackup(hash)
+								.putFilesize(hash, pu.getSize())
+								.commit();
+						PoolMetrics.UPLOADS_NEW.inc();
+						return new Retrieval(hash, RivetResult.ADDED, Temperature.FREEZING);
 					} finally {
-						if (bss != null) bss.close();
+						pu.abort();
 					}
 				}
 
-				private HashCode checkShortCircuit(String originalUrl, HttpUrl url, Temperature temp) {
+				private Retrieval checkShortCircuit(HttpUrl url, Temperature temp) {
 					String publicHost = Poolmgr.publicHost.replaceFirst("^https?://", "");
 					String fullHost = url.host();
 					if (url.port() != (url.scheme().equals("https") ? 443 : 80)) {
@@ -190,8 +307,7 @@ public final class RivetHandler extends AbstractHandler {
 							if (hashStr.startsWith(prelude) && HEX_MATCHER.matchesAllOf(hashStr)) {
 								HashCode hash = HashCode.fromString(hashStr);
 								if (Queries.isMapped(Poolmgr.dataSource, hash)) {
-									results.put(originalUrl, new Pair<>(RivetResult.FOUND, temp));
-									return hash;
+									return new Retrieval(hash, RivetResult.FOUND, temp);
 								}
 							}
 						}
@@ -200,7 +316,8 @@ public final class RivetHandler extends AbstractHandler {
 				}
 			});
 	
-	private OkHttpClient client;
+	OkHttpClient client;
+	private final RivetJobs jobs;
 	
 	public RivetHandler() {
 		this.gson = new Gson();
@@ -219,27 +336,48 @@ public final class RivetHandler extends AbstractHandler {
 				.addInterceptor(BrotliInterceptor.INSTANCE)
 				.addInterceptor(urlChecker)
 				.addNetworkInterceptor(urlChecker)
+				.dns(new VettedDns())
 				.connectTimeout(8, TimeUnit.SECONDS)
 				.build();
+		this.jobs = new RivetJobs(this);
+		jobs.start();
 	}
 
 
+	private synchronized Semaphore getFetchPermits() {
+		int count = Math.max(1, Poolmgr.rivetMaxFetches);
+		if (fetchPermits == null || fetchPermitCount != count) {
+			// fetches holding the old one finish out on it
+			fetchPermits = new Semaphore(count);
+			fetchPermitCount = count;
+		}
+		return fetchPermits;
+	}
+
 	private void checkIllegalUrl(Chain chain, HttpUrl url) throws UnknownHostException, IOException {
 		if (url.port() <= 0 || url.port() > 65535 || illegalPorts.contains(url.port())) {
 			if (chain != null) chain.call().cancel();
 			throw new IOException("Illegal host: Illegal port "+url.port());
 		}
-		String host = url.host();
-		for (InetAddress inet : client.dns().lookup(host)) {
-			if (inet.isAnyLocalAddress() || inet.isLinkLocalAddress() || inet.isLoopbackAddress()
-					|| inet.isMulticastAddress() || inet.isSiteLocalAddress()) {
-				if (chain != null) chain.call().cancel();
-				throw new IOException("Illegal host: Illegal address "+inet.getHostAddress()+" ("+host+")");
-			}
+		try {
+			// cached, so this is the same answer the connection will get
+			client.dns().lookup(url.host());
+		} catch (UnknownHostException e) {
+			if (chain != null) chain.call().cancel();
+			throw e;
 		}
 	}
 
 
+	static final class RivetError extends Exception {
+		private static final long serialVersionUID = 1L;
+		final int code;
+		private RivetError(int code, String msg) {
+			super(msg, null, false, false);
+			this.code = code;
+		}
+	}
+
 	private class RivetRequest {
 		public final String identity;
 		public final JsonObject json;
@@ -252,163 +390,367 @@ public final class RivetHandler extends AbstractHandler {
 	@Override
 	public void handle(String target, org.eclipse.jetty.server.Request baseRequest, HttpServletRequest req, HttpServletResponse res) throws IOException, ServletException {
 		baseRequest.setHandled(true);
-		if ("/retrieve".equals(target)) {
-			Poolmgr.reloadConfigIfChanged();
-			if (Poolmgr.readOnly) {
-				jsonError(res, 503, "Currently in read-only maintenance mode; try again later");
-				return;
-			}
-			RivetRequest rreq = authenticateAndParse(target, "POST", "application/json; charset=utf-8", true, req, res);
-			if (rreq == null) return;
-			if (!rreq.json.has("sourceUrl")) {
-				jsonError(res, 400, "Must specify sourceUrl");
-				return;
+		if ("/retrieve-batch".equals(target)) {
+			long start = System.nanoTime();
+			try {
+				handleRetrieveBatch(target, req, res);
+			} finally {
+				RETRIEVE_BATCH_TIME.observeSince(start);
 			}
-			if (!rreq.json.has("destinationPath")) {
-				jsonError(res, 400, "Must specify destinationPath");
-				return;
+		} else if ("/retrieve".equals(target)) {
+			long start = System.nanoTime();
+			try {
+				handleRetrieve(target, req, res);
+			} finally {
+				RETRIEVE_TIME.observeSince(start);
 			}
-			String sourceUrl = rreq.json.get("sourceUrl").getAsString();
-			if (!sourceUrl.startsWith("https://") && !sourceUrl.startsWith("http://")) {
-				jsonError(res, 400, "sourceUrl must be http or https");
-				return;
+		} else if (target.startsWith("/job/")) {
+			handleJob(target, req, res);
+		} else if (target.startsWith("/upload/")) {
+			long start = System.nanoTime();
+			try {
+				handleUpload(target, req, res);
+			} finally {
+				UPLOAD_TIME.observeSince(start);
 			}
-			String destinationPath = rreq.json.get("destinationPath").getAsString();
-			RivetResult retRes = null;
-			Temperature temp = null;
-			HashCode hash;
-			res.sendError(102);
-			synchronized (retrieveMutex) {
-				try {
-					if (urlCache.getIfPresent(sourceUrl) != null) {
-						retRes = RivetResult.CACHED;
-						temp = Temperature.SCALDING;
-					}
-					hash = urlCache.get(sourceUrl);
-					if (retRes == null || temp == null) {
-						Pair<RivetResult, Temperature> pair = results.get(sourceUrl);
-						retRes = pair.getFirst();
-						temp = pair.getSecond();
-					}
-				} catch (ExecutionException | UncheckedExecutionException e) {
-					if (e.getMessage() != null) {
-						if (e.getMessage().contains("Illegal host")) {
-							jsonError(res, 400, "Illegal host");
-							return;
-						}
-						if (e.getMessage().contains("Unsuccessful response")) {
-							jsonError(res, 502, "Upstream error "+(e.getMessage().substring(e.getMessage().lastIndexOf(':')+1).trim()));
-							return;
-						}
-						if (e.getMessage().contains("Failed to connect")) {
-							jsonError(res, 502, "Upstream refused connection");
-							return;
-						}
-						if (e.getMessage().contains("connect timed out")) {
-							jsonError(res, 504, "Upstream timeout");
-							return;
-						}
-					}
-					jsonExceptionError(res, e, "sourceUrl: "+sourceUrl, "identity: "+rreq.identity);
+		} else {
+			res.sendError(404);
+		}
+	}
+
+	private void handleRetrieve(String target, HttpServletRequest req, HttpServletResponse res) throws IOException {
+		Poolmgr.reloadConfigIfChanged();
+		if (Poolmgr.readOnly) {
+			jsonError(res, 503, "Currently in read-only maintenance mode; try again later");
+			return;
+		}
+		RivetRequest rreq = authenticateAndParse(target, "POST", "application/json; charset=utf-8", true, req, res);
+		if (rreq == null) return;
+		if (!rreq.json.has("sourceUrl")) {
+			jsonError(res, 400, "Must specify sourceUrl");
+			return;
+		}
+		if (!rreq.json.has("destinationPath")) {
+			jsonError(res, 400, "Must specify destinationPath");
+			return;
+		}
+		String sourceUrl = rreq.json.get("sourceUrl").getAsString();
+		if (!sourceUrl.startsWith("https://") && !sourceUrl.startsWith("http://")) {
+			jsonError(res, 400, "sourceUrl must be http or https");
+			return;
+		}
+		String destinationPath = rreq.json.get("destinationPath").getAsString();
+		if (rreq.json.has("async") && rreq.json.get("async").getAsBoolean()) {
+			String callbackUrl = null;
+			if (rreq.json.has("callbackUrl")) {
+				callbackUrl = rreq.json.get("callbackUrl").getAsString();
+				if (!callbackUrl.startsWith("https://") && !callbackUrl.startsWith("http://")) {
+					jsonError(res, 400, "callbackUrl must be http or https");
 					return;
 				}
 			}
 			try {
-				Queries.putMap(Poolmgr.dataSource, rreq.identity, destinationPath, hash);
-				res.setStatus(200);
+				long id = Queries.putRivetJob(Poolmgr.dataSource, rreq.identity, sourceUrl, destinationPath, callbackUrl);
 				JsonObject obj = new JsonObject();
-				JsonObject result = new JsonObject();
-				result.addProperty("name", retRes.name());
-				result.addProperty("temperature", temp.name());
-				obj.add("result", result);
-				obj.addProperty("hash", hash.toString());
+				obj.addProperty("job", id);
+				obj.addProperty("status", "/job/"+id);
+				res.setStatus(202);
 				sendJson(res, obj);
 			} catch (Exception e) {
-				jsonExceptionError(res, e, "sourceUrl: "+sourceUrl, "identity: "+rreq.identity, "hash: "+hash);
-				return;
+				jsonExceptionError(res, e, "sourceUrl: "+sourceUrl, "identity: "+rreq.identity);
 			}
-		} else if (target.startsWith("/upload/")) {
-			Poolmgr.reloadConfigIfChanged();
-			if (Poolmgr.readOnly) {
-				jsonError(res, 503, "Currently in read-only maintenance mode; try again later");
-				return;
+			return;
+		}
+		res.sendError(102);
+		JsonObject obj;
+		try {
+			obj = retrieve(rreq.identity, sourceUrl, destinationPath);
+		} catch (RivetError e) {
+			jsonError(res, e.code, e.getMessage());
+			return;
+		}
+		res.setStatus(200);
+		sendJson(res, obj);
+	}
+
+	/**
+	 * Fetch {@code sourceUrl} (or find it) and map it to {@code destinationPath}.
+	 * @return the response to send
+	 * @throws RivetError if it didn't work out, with the error to send
+	 */
+	JsonObject retrieve(String identity, String sourceUrl, String destinationPath) throws RivetError {
+		for (int attempt = 0; ; attempt++) {
+			try {
+				return retrieveOnce(identity, sourceUrl, destinationPath);
+			} catch (BlobMissingException e) {
+				// we had it, but it's been deleted since; forget we had it and go get it again
+				urlCache.invalidate(sourceUrl);
+				if (attempt > 0) throw internalError(e, "sourceUrl: "+sourceUrl, "identity: "+identity);
+			}
+		}
+	}
+
+	private JsonObject retrieveOnce(String identity, String sourceUrl, String destinationPath) throws RivetError {
+		RivetResult retRes;
+		Temperature temp;
+		HashCode hash;
+		try {
+			Retrieval r = urlCache.get(sourceUrl);
+			hash = r.hash;
+			if (r.claim()) {
+				retRes = r.result;
+				temp = r.temperature;
+			} else {
+				retRes = RivetResult.CACHED;
+				temp = Temperature.SCALDING;
+			}
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			if (e.getMessage() != null) {
+				if (e.getMessage().contains("Illegal host")) {
+					throw new RivetError(400, "Illegal host");
+				}
+				if (e.getMessage().contains("Unsuccessful response")) {
+					throw new RivetError(502, "Upstream error "+(e.getMessage().substring(e.getMessage().lastIndexOf(':')+1).trim()));
+				}
+				if (e.getMessage().contains("Failed to connect")) {
+					throw new RivetError(502, "Upstream refused connection");
+				}
+				if (e.getMessage().contains("connect timed out")) {
+					throw new RivetError(504, "Upstream timeout");
+				}
 			}
-			String expect = req.getHeader("Expect");
-			if (expect == null || !expect.equals("100-continue")) {
-				jsonError(res, 400, "Must expect continue");
+			throw internalError(e, "sourceUrl: "+sourceUrl, "identity: "+identity);
+		}
+		try {
+			Queries.putMap(Poolmgr.dataSource, identity, destinationPath, hash);
+			JsonObject obj = new JsonObject();
+			JsonObject result = new JsonObject();
+			result.addProperty("name", retRes.name());
+			result.addProperty("temperature", temp.name());
+			obj.add("result", result);
+			obj.addProperty("hash", hash.toString());
+			RESULT_COUNTERS[retRes.ordinal()][temp.ordinal()].inc();
+			return obj;
+		} catch (BlobMissingException e) {
+			throw e;
+		} catch (Exception e) {
+			throw internalError(e, "sourceUrl: "+sourceUrl, "identity: "+identity, "hash: "+hash);
+		}
+	}
+
+	private void handleRetrieveBatch(String target, HttpServletRequest req, HttpServletResponse res) throws IOException {
+		Poolmgr.reloadConfigIfChanged();
+		if (Poolmgr.readOnly) {
+			jsonError(res, 503, "Currently in read-only maintenance mode; try again later");
+			return;
+		}
+		RivetRequest rreq = authenticateAndParse(target, "POST", "application/json; charset=utf-8", MAX_BATCH_BODY_SIZE, req, res);
+		if (rreq == null) return;
+		if (!rreq.json.has("items") || !rreq.json.get("items").isJsonArray()) {
+			jsonError(res, 400, "Must specify items");
+			return;
+		}
+		JsonArray items = rreq.json.getAsJsonArray("items");
+		if (items.size() > MAX_BATCH_ITEMS) {
+			jsonError(res, 413, "Too many items (max "+MAX_BATCH_ITEMS+")");
+			return;
+		}
+		// check everything up front, so a bad batch is rejected as a whole rather than half-done
+		String[] sourceUrls = new String[items.size()];
+		String[] destinationPaths = new String[items.size()];
+		for (int i = 0; i < items.size(); i++) {
+			JsonObject item = items.get(i).isJsonObject() ? items.get(i).getAsJsonObject() : null;
+			if (item == null || !item.has("sourceUrl") || !item.has("destinationPath")) {
+				jsonError(res, 400, "Item "+i+" must specify sourceUrl and destinationPath");
 				return;
 			}
-			String hashStr = req.getQueryString();
-			if (hashStr == null || hashStr.length() != 128 || !HEX_MATCHER.matchesAllOf(hashStr)) {
-				jsonError(res, 400, "Bad hash");
+			sourceUrls[i] = item.get("sourceUrl").getAsString();
+			if (!sourceUrls[i].startsWith("https://") && !sourceUrls[i].startsWith("http://")) {
+				jsonError(res, 400, "Item "+i+" sourceUrl must be http or https");
 				return;
 			}
-			String path = target.substring(8);
-			RivetRequest rreq = authenticateAndParse(target, "POST", null, false, req, res);
-			if (rreq == null) return;
-			try {
-				HashCode hash = HashCode.fromString(hashStr);
-				RivetResult rres;
-				Temperature temp;
-				if (Queries.isMapped(Poolmgr.dataSource, hash)) {
-					rres = RivetResult.FOUND;
-					temp = Temperature.HOT;
-				} else {
-					ByteSinkSource bss = null;
-					try {
-						long len = req.getContentLengthLong();
-						if (len == -1 || len > 8192) {
-							bss = new FileByteSinkSource(File.createTempFile("jortage-proxy-", ".dat"), true);
-						} else {
-							bss = new MemoryByteSinkSource();
-						}
-						OutputStream sinkOut = bss.getSink().openStream();
-						HashingOutputStream hos = new HashingOutputStream(Hashing.sha512(), sinkOut);
-						// accessing the input stream sends a 100 Continue
-						try (InputStream in = req.getInputStream()) {
-							ByteStreams.copy(in, hos);
-						}
-						hos.close();
-						HashCode realHash = hos.hash();
-						if (!hash.equals(realHash)) {
-							jsonError(res, 400, "Hash of body ("+realHash+") did not match hash in query ("+hash+")");
-							return;
+			destinationPaths[i] = item.get("destinationPath").getAsString();
+		}
+		res.setStatus(200);
+		res.setHeader("Content-Type", "application/x-ndjson; charset=utf-8");
+		OutputStream out = res.getOutputStream();
+		out.flush();
+		Semaphore permits = getBatchPermits(rreq.identity);
+		BlockingQueue<JsonObject> done = new LinkedBlockingQueue<>();
+		int submitted = 0;
+		int written = 0;
+		try {
+			while (written < items.size()) {
+				// with nothing of ours in flight there's nothing to wait for but a permit
+				if (submitted < items.size() && (submitted == written ? acquire(permits) : permits.tryAcquire())) {
+					int i = submitted++;
+					batchExecutor.execute(() -> {
+						JsonObject line;
+						try {
+							line = retrieve(rreq.identity, sourceUrls[i], destinationPaths[i]);
+							line.addProperty("status", 200);
+						} catch (RivetError e) {
+							line = new JsonObject();
+							line.addProperty("status", e.code);
+							line.addProperty("error", e.getMessage());
+						} catch (Throwable t) {
+							line = new JsonObject();
+							line.addProperty("status", 500);
+							line.addProperty("error", internalError(t, "sourceUrl: "+sourceUrls[i], "identity: "+rreq.identity).getMessage());
+						} finally {
+							permits.release();
 						}
-						Blob blob = Poolmgr.backingBlobStore.blobBuilder(Poolmgr.hashToPath(hash.toString()))
-								.payload(bss.getSource())
-								.contentLength(bss.getSource().size())
-								.contentType(req.getContentType())
-								.build();
-						long size = bss.getSource().size();
-						Poolmgr.backingBlobStore.putBlob(Poolmgr.bucket, blob,
-								new PutOptions().setBlobAccess(BlobAccess.PUBLIC_READ).multipart(size > 8192));
-						Queries.putPendingBackup(Poolmgr.dataSource, hash);
-						Queries.putFilesize(Poolmgr.dataSource, hash, size);
-						rres = RivetResult.ADDED;
-						temp = Temperature.FREEZING;
-					} finally {
-						if (bss != null) bss.close();
-					}
+						line.addProperty("index", i);
+						line.addProperty("sourceUrl", sourceUrls[i]);
+						line.addProperty("destinationPath", destinationPaths[i]);
+						done.add(line);
+					});
+					continue;
 				}
-				Queries.putMap(Poolmgr.dataSource, rreq.identity, path, hash);
-				res.setStatus(200);
-				JsonObject obj = new JsonObject();
-				JsonObject result = new JsonObject();
-				result.addProperty("name", rres.name());
-				result.addProperty("temperature", temp.name());
-				obj.add("result", result);
-				sendJson(res, obj);
-			} catch (Exception e) {
-				jsonExceptionError(res, e, "identity: "+rreq.identity, "target: "+target+(req.getQueryString() == null ? "" : "?"+req.getQueryString()));
+				JsonObject line = done.take();
+				out.write((line.toString()+"\n").getBytes(Charsets.UTF_8));
+				out.flush();
+				written++;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		out.close();
+	}
+
+	private static boolean acquire(Semaphore s) throws InterruptedException {
+		s.acquire();
+		return true;
+	}
+
+	private Semaphore getBatchPermits(String identity) {
+		int count = Math.max(1, Poolmgr.rivetBatchConcurrency);
+		// like fetchPermits, replaced if the config changes; batches holding the old one finish out on it
+		return batchPermits.compute(identity, (k, v) -> v == null || v.getKey() != count ? Maps.immutableEntry(count, new Semaphore(count)) : v).getValue();
+	}
+
+	private void handleJob(String target, HttpServletRequest req, HttpServletResponse res) throws IOException {
+		RivetRequest rreq = authenticateAndParse(target, "GET", null, false, req, res);
+		if (rreq == null) return;
+		Long id = Longs.tryParse(target.substring(5));
+		try {
+			Queries.RivetJob job = id == null ? null : Queries.getRivetJob(Poolmgr.dataSource, id);
+			if (job == null || !job.identity.equals(rreq.identity)) {
+				jsonError(res, 404, "No such job");
 				return;
 			}
-		} else {
-			res.sendError(404);
+			res.setStatus(200);
+			sendJson(res, RivetJobs.describe(job.id, job.state, job.attempts, job.result));
+		} catch (Exception e) {
+			jsonExceptionError(res, e, "identity: "+rreq.identity, "target: "+target);
+		}
+	}
+
+	private void handleUpload(String target, HttpServletRequest req, HttpServletResponse res) throws IOException {
+		Poolmgr.reloadConfigIfChanged();
+		if (Poolmgr.readOnly) {
+			jsonError(res, 503, "Currently in read-only maintenance mode; try again later");
+			return;
+		}
+		String expect = req.getHeader("Expect");
+		if (expect == null || !expect.equals("100-continue")) {
+			jsonError(res, 400, "Must expect continue");
+			return;
+		}
+		String hashStr = req.getQueryString();
+		if (hashStr == null || hashStr.length() != 128 || !HEX_MATCHER.matchesAllOf(hashStr)) {
+			jsonError(res, 400, "Bad hash");
+			return;
+		}
+		String path = target.substring(8);
+		RivetRequest rreq = authenticateAndParse(target, "POST", null, false, req, res);
+		if (rreq == null) return;
+		try {
+			HashCode hash = HashCode.fromString(hashStr);
+			RivetResult rres;
+			Temperature temp;
+			boolean found = false;
+			if (Queries.isMapped(Poolmgr.dataSource, hash)) {
+				try {
+					Queries.putMap(Poolmgr.dataSource, rreq.identity, path, hash);
+					found = true;
+				} catch (BlobMissingException e) {
+					// deleted since we looked; we haven't read the body yet, so just take it after all
+					KnownBlobs.invalidate(hash);
+				}
+			}
+			if (found) {
+				rres = RivetResult.FOUND;
+				temp = Temperature.HOT;
+				PoolMetrics.UPLOADS_DEDUPLICATED.inc();
+			} else {
+				ByteSinkSource bss = null;
+				try {
+					long len = req.getContentLengthLong();
+					if (len == -1 || len > 8192) {
+						bss = new FileByteSinkSource(File.createTempFile("jortage-proxy-", ".dat"), true);
+					} else {
+						bss = new MemoryByteSinkSource();
+					}
+					OutputStream sinkOut = bss.getSink().openStream();
+					HashingOutputStream hos = new HashingOutputStream(Hashing.sha512(), sinkOut);
+					// accessing the input stream sends a 100 Continue
+					try (InputStream in = req.getInputStream()) {
+						ByteStreams.copy(in, hos);
+					}
+					hos.close();
+					HashCode realHash = hos.hash();
+					PoolMetrics.BYTES_HASHED.add(bss.getSource().size());
+					if (!hash.equals(realHash)) {
+						jsonError(res, 400, "Hash of body ("+realHash+") did not match hash in query ("+hash+")");
+						return;
+					}
+					Blob blob = Poolmgr.backingBlobStore.blobBuilder(Poolmgr.hashToPath(hash.toString()))
+							.payload(bss.getSource())
+							.contentLength(bss.getSource().size())
+							.contentType(req.getContentType())
+							.build();
+					long size = bss.getSource().size();
+					String etag = Poolmgr.backingBlobStore.putBlob(Poolmgr.bucket, blob,
+							new PutOptions().setBlobAccess(BlobAccess.PUBLIC_READ).multipart(size > 8192));
+					KnownBlobs.put(hash, etag, size);
+					Queries.begin(Poolmgr.dataSource)
+							.putPendingBackup(hash)
+							.putFilesize(hash, size)
+							.putMap(rreq.identity, path, hash)
+							.commit();
+					rres = RivetResult.ADDED;
+					temp = Temperature.FREEZING;
+					PoolMetrics.UPLOADS_NEW.inc();
+				} finally {
+					if (bss != null) bss.close();
+				}
+			}
+			res.setStatus(200);
+			JsonObject obj = new JsonObject();
+			JsonObject result = new JsonObject();
+			result.addProperty("name", rres.name());
+			result.addProperty("temperature", temp.name());
+			obj.add("result", result);
+			sendJson(res, obj);
+			RESULT_COUNTERS[rres.ordinal()][temp.ordinal()].inc();
+		} catch (Exception e) {
+			jsonExceptionError(res, e, "identity: "+rreq.identity, "target: "+target+(req.getQueryString() == null ? "" : "?"+req.getQueryString()));
+			return;
 		}
 	}
 
 	private RivetRequest authenticateAndParse(String target, String method, String expectedContentType,
 			boolean validateAndParseBody, HttpServletRequest req, HttpServletResponse res) throws IOException {
+		return authenticateAndParse(target, method, expectedContentType, validateAndParseBody ? MAX_BODY_SIZE : -1, req, res);
+	}
+
+	/**
+	 * @param maxBodySize how big a body to accept, or -1 to not read or parse the body
+	 */
+	private RivetRequest authenticateAndParse(String target, String method, String expectedContentType,
+			int maxBodySize, HttpServletRequest req, HttpServletResponse res) throws IOException {
+		boolean validateAndParseBody = maxBodySize != -1;
 		if (expectedContentType != null)
 			expectedContentType = expectedContentType.replace(" ", "").toLowerCase(Locale.ROOT);
 		try {
@@ -472,7 +814,7 @@ public final class RivetHandler extends AbstractHandler {
 					jsonError(res, 411, "Length required");
 					return null;
 				}
-				if (req.getContentLength() > 8192) {
+				if (req.getContentLength() > maxBodySize) {
 					jsonError(res, 413, "Payload too large");
 					return null;
 				}
@@ -486,7 +828,6 @@ public final class RivetHandler extends AbstractHandler {
 				}
 			}
 			byte[] theirMac = BaseEncoding.base64().decode(macStr);
-			Mac mac = assertSuccess(() -> Mac.getInstance("HmacSHA512"));
 			byte[] payload;
 			if (validateAndParseBody) {
 				payload = ByteStreams.toByteArray(ByteStreams.limit(req.getInputStream(), req.getContentLength()));
@@ -496,16 +837,13 @@ public final class RivetHandler extends AbstractHandler {
 			}
 			String payloadStr = new String(payload, Charsets.UTF_8);
 			
-			String key = Poolmgr.users.get(identity);
-			assertSuccess(() -> mac.init(new SecretKeySpec(key.getBytes(Charsets.UTF_8), "RAW")));
 			String query;
 			if (req.getQueryString() == null) {
 				query = "";
 			} else {
 				query = "?"+req.getQueryString();
 			}
-			mac.update((target+query+":"+identity+":"+dateStr+":"+payloadStr).getBytes(Charsets.UTF_8));
-			byte[] ourMac = mac.doFinal();
+			byte[] ourMac = mac(identity, target+query, dateStr, payloadStr);
 			if (!MessageDigest.isEqual(theirMac, ourMac)) {
 				jsonError(res, 401, "Rivet-Auth header invalid (Bad MAC)");
 				return null;
@@ -531,6 +869,14 @@ public final class RivetHandler extends AbstractHandler {
 
 
 	private void jsonExceptionError(HttpServletResponse res, Throwable t, String... extra) throws IOException {
+		RivetError e = internalError(t, extra);
+		jsonError(res, e.code, e.getMessage());
+	}
+
+	/**
+	 * Log {@code t} under a random token, and make an error that refers to it.
+	 */
+	private static RivetError internalError(Throwable t, String... extra) {
 		byte[] tokenBys = new byte[8];
 		ThreadLocalRandom.current().nextBytes(tokenBys);
 		String token = BaseEncoding.base16().lowerCase().encode(tokenBys);
@@ -543,7 +889,7 @@ public final class RivetHandler extends AbstractHandler {
 			}
 		}
 		System.err.println("== END "+token+" ==");
-		jsonError(res, 500, "Internal error "+token);
+		return new RivetError(500, "Internal error "+token);
 	}
 
 
@@ -561,6 +907,18 @@ public final class RivetHandler extends AbstractHandler {
 		res.getOutputStream().close();
 	}
 
+	/**
+	 * The MAC of a Rivet-Auth header, over a request (or callback) to {@code pathAndQuery} with
+	 * body {@code payload}.
+	 */
+	static byte[] mac(String identity, String pathAndQuery, String dateStr, String payload) {
+		Mac mac = assertSuccess(() -> Mac.getInstance("HmacSHA512"));
+		String key = Poolmgr.users.get(identity);
+		assertSuccess(() -> mac.init(new SecretKeySpec(key.getBytes(Charsets.UTF_8), "RAW")));
+		mac.update((pathAndQuery+":"+identity+":"+dateStr+":"+payload).getBytes(Charsets.UTF_8));
+		return mac.doFinal();
+	}
+
 	private interface ExceptableRunnable { void run() throws Exception; }
 	private interface ExceptableSupplier<T> { T get() throws Exception; }
 	
@@ -0,0 +1,180 @@
+package com.jortage.poolmgr.rivet;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.jortage.poolmgr.Poolmgr;
+import com.jortage.poolmgr.Queries;
+import com.jortage.poolmgr.Queries.RivetJob;
+import com.jortage.poolmgr.rivet.RivetHandler.RivetError;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Works through Rivet retrieves that were queued with {@code "async": true} instead of done while
+ * the client waited. Jobs live in the rivet_jobs table, so they survive restarts; ones that fail
+ * in a way that might go away on its own (upstream errors, timeouts) are retried with backoff.
+ * <p>
+ * A job's outcome can be polled from {@code /job/<id>}, and is POSTed to the job's callback URL
+ * if it has one, with a Rivet-Auth header made the same way a client makes one for us.
+ */
+final class RivetJobs {
+
+	private static final long BASE_BACKOFF = TimeUnit.SECONDS.toMillis(30);
+	private static final long MAX_BACKOFF = TimeUnit.HOURS.toMillis(1);
+	private static final long FINISHED_RETENTION = TimeUnit.DAYS.toMillis(1);
+	// far longer than any one retrieve can take, given the client's timeouts
+	private static final long STALE_AFTER = TimeUnit.HOURS.toMillis(1);
+	private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+	private final RivetHandler handler;
+	private final int workers;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setNameFormat("Rivet job scheduler").setDaemon(true).build());
+	private final ExecutorService workerPool;
+
+	RivetJobs(RivetHandler handler) {
+		this.handler = handler;
+		this.workers = Math.max(1, Poolmgr.rivetJobWorkers);
+		this.workerPool = Executors.newFixedThreadPool(workers,
+				new ThreadFactoryBuilder().setNameFormat("Rivet job worker #%d").setDaemon(true).build());
+	}
+
+	/**
+	 * Requeue anything that was cut off by the last shutdown, and start checking for due jobs.
+	 */
+	void start() {
+		int reset = Queries.resetRunningRivetJobs(Poolmgr.dataSource, Long.MAX_VALUE);
+		if (reset > 0) {
+			System.err.println("Requeued "+reset+" Rivet job"+(reset == 1 ? "" : "s")+" that were running at last shutdown");
+		}
+		scheduler.scheduleWithFixedDelay(this::poll, 1, 1, TimeUnit.SECONDS);
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				int stale = Queries.resetRunningRivetJobs(Poolmgr.dataSource, System.currentTimeMillis()-STALE_AFTER);
+				if (stale > 0) {
+					System.err.println("Requeued "+stale+" Rivet job"+(stale == 1 ? "" : "s")+" stuck running for over an hour");
+				}
+				Queries.forgetFinishedRivetJobs(Poolmgr.dataSource, System.currentTimeMillis()-FINISHED_RETENTION);
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}, 1, 60, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * @param result the outcome of the last attempt as JSON, or null if there hasn't been one
+	 */
+	static JsonObject describe(long id, String state, int attempts, String result) {
+		JsonObject obj = new JsonObject();
+		obj.addProperty("job", id);
+		obj.addProperty("state", state);
+		obj.addProperty("attempts", attempts);
+		if (result != null) {
+			obj.add("outcome", JsonParser.parseString(result));
+		}
+		return obj;
+	}
+
+	private void poll() {
+		try {
+			// retrieves would all fail anyway; leave the jobs queued until we're writable again
+			if (Poolmgr.readOnly) return;
+			int free = workers-inFlight.get();
+			if (free <= 0) return;
+			for (RivetJob job : Queries.claimRivetJobs(Poolmgr.dataSource, free)) {
+				inFlight.incrementAndGet();
+				workerPool.execute(() -> {
+					try {
+						run(job);
+					} catch (Throwable t) {
+						t.printStackTrace();
+					} finally {
+						inFlight.decrementAndGet();
+					}
+				});
+			}
+		} catch (Throwable t) {
+			t.printStackTrace();
+		}
+	}
+
+	private void run(RivetJob job) {
+		int attempts = job.attempts+1;
+		JsonObject outcome;
+		boolean retryable;
+		try {
+			outcome = handler.retrieve(job.identity, job.sourceUrl, job.destinationPath);
+			outcome.addProperty("status", 200);
+			retryable = false;
+		} catch (RivetError e) {
+			outcome = new JsonObject();
+			outcome.addProperty("status", e.code);
+			outcome.addProperty("error", e.getMessage());
+			// a 4xx is going to be a 4xx next time too
+			retryable = e.code >= 500;
+		}
+		String state;
+		try {
+			if (retryable && attempts < Poolmgr.rivetJobMaxAttempts) {
+				long backoff = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(attempts-1, 20));
+				Queries.requeueRivetJob(Poolmgr.dataSource, job.id, attempts, System.currentTimeMillis()+backoff, outcome.toString());
+				return;
+			}
+			state = retryable || outcome.get("status").getAsInt() != 200 ? "FAILED" : "DONE";
+			Queries.finishRivetJob(Poolmgr.dataSource, job.id, state, attempts, outcome.toString());
+		} catch (RuntimeException e) {
+			// don't leave it RUNNING; if this fails too, the stale job check will get to it
+			e.printStackTrace();
+			Queries.requeueRivetJob(Poolmgr.dataSource, job.id, attempts, System.currentTimeMillis()+BASE_BACKOFF, outcome.toString());
+			return;
+		}
+		if (job.callbackUrl != null) {
+			callback(job, describe(job.id, state, attempts, outcome.toString()));
+		}
+	}
+
+	/**
+	 * Tell the client how its job went. This is a courtesy; if it doesn't work out, the client
+	 * can still poll.
+	 */
+	private void callback(RivetJob job, JsonObject body) {
+		try {
+			HttpUrl url = HttpUrl.Companion.get(job.callbackUrl);
+			String payload = body.toString();
+			String dateStr = DateTimeFormatter.ISO_INSTANT.format(Instant.now().truncatedTo(ChronoUnit.SECONDS));
+			String pathAndQuery = url.encodedPath()+(url.encodedQuery() == null ? "" : "?"+url.encodedQuery());
+			byte[] mac = RivetHandler.mac(job.identity, pathAndQuery, dateStr, payload);
+			try (Response res = handler.client.newCall(new Request.Builder()
+					.url(url)
+					.addHeader("User-Agent", RivetHandler.UA)
+					.addHeader("Rivet-Auth", job.identity+":"+BaseEncoding.base64().encode(mac)+":"+dateStr)
+					.post(RequestBody.Companion.create(payload, JSON))
+					.build()).execute()) {
+				if (!res.isSuccessful()) {
+					System.err.println("Rivet job "+job.id+" callback to "+job.callbackUrl+" got response code "+res.code());
+				}
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			System.err.println("Rivet job "+job.id+" callback to "+job.callbackUrl+" failed: "+e);
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+package com.jortage.poolmgr.rivet;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import okhttp3.Dns;
+
+/**
+ * Resolves hosts for Rivet, refusing any that resolve to somewhere we shouldn't be fetching from
+ * (loopback, private networks, etc.)
+ * <p>
+ * Rivet's OkHttp client connects to whatever this returns, so the addresses that were checked are
+ * the addresses that get connected to; there's no second lookup for a DNS server to answer
+ * differently. Lookups are cached for a minute, so the several checks made over the course of
+ * one fetch (and its redirects) only cost one real lookup.
+ */
+final class VettedDns implements Dns {
+
+	private final LoadingCache<String, List<InetAddress>> cache = CacheBuilder.newBuilder()
+			.maximumSize(4096)
+			.expireAfterWrite(1, TimeUnit.MINUTES)
+			.build(new CacheLoader<String, List<InetAddress>>() {
+				@Override
+				public List<InetAddress> load(String host) throws UnknownHostException {
+					return Dns.SYSTEM.lookup(host);
+				}
+			});
+
+	@Override
+	public List<InetAddress> lookup(String host) throws UnknownHostException {
+		List<InetAddress> addresses;
+		try {
+			addresses = cache.get(host);
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			if (e.getCause() instanceof UnknownHostException) throw (UnknownHostException)e.getCause();
+			UnknownHostException uhe = new UnknownHostException(host);
+			uhe.initCause(e.getCause());
+			throw uhe;
+		}
+		// checked every time rather than once when cached, so a bad host isn't looked up over and over
+		for (InetAddress inet : addresses) {
+			if (isIllegal(inet)) {
+				throw new UnknownHostException("Illegal host: Illegal address "+inet.getHostAddress()+" ("+host+")");
+			}
+		}
+		return addresses;
+	}
+
+	private static boolean isIllegal(InetAddress inet) {
+		if (inet.isAnyLocalAddress() || inet.isLinkLocalAddress() || inet.isLoopbackAddress()
+				|| inet.isMulticastAddress() || inet.isSiteLocalAddress()) {
+			return true;
+		}
+		byte[] addr = inet.getAddress();
+		if (inet instanceof Inet6Address) {
+			// unique local, fc00::/7; isSiteLocalAddress only knows the long-deprecated fec0::/10
+			return (addr[0] & 0xFE) == 0xFC;
+		}
+		// shared address space (carrier-grade NAT), 100.64.0.0/10
+		return (addr[0] & 0xFF) == 100 && (addr[1] & 0xC0) == 64;
+	}
+
+}
@@ -0,0 +1,113 @@
+package com.jortage.poolmgr.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * A token bucket whose rate follows what the other end will actually put up with: additive
+ * increase for every request that goes through fine, multiplicative decrease whenever we get
+ * told to slow down. Same idea as TCP congestion control.
+ * <p>
+ * onSuccess is called for every request, so it doesn't lock; the rate is CASed, and only handed
+ * to the underlying RateLimiter (which does lock) once it's drifted far enough to matter.
+ */
+public class AdaptiveRateLimiter {
+
+	// increases smaller than both of these aren't worth telling the RateLimiter about yet
+	private static final double MIN_STEP = 1;
+	private static final double MIN_CHANGE = 0.01;
+
+	private final RateLimiter limiter;
+	private final double minRate, maxRate;
+	private final AtomicInteger waiting = new AtomicInteger();
+
+	// Double bits
+	private final AtomicLong rate;
+	private final AtomicLong lastBackoff = new AtomicLong(System.nanoTime()-1_000_000_000L);
+	// what the limiter was last set to; only written with the limiter locked
+	private volatile double appliedRate;
+
+	public AdaptiveRateLimiter(double initialRate, double minRate, double maxRate) {
+		if (minRate <= 0 || minRate > maxRate) throw new IllegalArgumentException("Bad rate limits: min "+minRate+", max "+maxRate);
+		this.minRate = minRate;
+		this.maxRate = maxRate;
+		double initial = clamp(initialRate);
+		this.rate = new AtomicLong(Double.doubleToLongBits(initial));
+		this.appliedRate = initial;
+		this.limiter = RateLimiter.create(initial);
+	}
+
+	/**
+	 * Block until a request is allowed to go out.
+	 */
+	public void acquire() {
+		waiting.incrementAndGet();
+		try {
+			limiter.acquire();
+		} finally {
+			waiting.decrementAndGet();
+		}
+	}
+
+	/**
+	 * The request went through; creep the rate back up, by about one request per second for
+	 * every second's worth of successful requests.
+	 */
+	public void onSuccess() {
+		while (true) {
+			long bits = rate.get();
+			double cur = Double.longBitsToDouble(bits);
+			if (cur >= maxRate) return;
+			double next = clamp(cur+(1/cur));
+			if (rate.compareAndSet(bits, Double.doubleToLongBits(next))) {
+				double applied = appliedRate;
+				if (next-applied >= Math.max(MIN_STEP, applied*MIN_CHANGE) || next >= maxRate) {
+					apply();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * We got a 429 or 503; halve the rate. Requests that were already in flight will probably get
+	 * throttled too, so only back off once per second.
+	 * @return true if the rate was actually lowered
+	 */
+	public boolean onThrottled() {
+		long now = System.nanoTime();
+		long last = lastBackoff.get();
+		if (now-last < 1_000_000_000L || !lastBackoff.compareAndSet(last, now)) return false;
+		rate.getAndUpdate((bits) -> Double.doubleToLongBits(clamp(Double.longBitsToDouble(bits)/2)));
+		apply();
+		return true;
+	}
+
+	public double getRate() {
+		return Double.longBitsToDouble(rate.get());
+	}
+
+	/**
+	 * @return the number of threads currently waiting for a permit
+	 */
+	public int getQueueDepth() {
+		return waiting.get();
+	}
+
+	private void apply() {
+		synchronized (limiter) {
+			// whatever the rate is by now, not what it was when we decided to apply it, so an
+			// increase that loses a race with a backoff can't undo it
+			double latest = getRate();
+			limiter.setRate(latest);
+			appliedRate = latest;
+		}
+	}
+
+	private double clamp(double rate) {
+		return Math.max(minRate, Math.min(maxRate, rate));
+	}
+
+}
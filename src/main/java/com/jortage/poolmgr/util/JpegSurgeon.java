@@ -0,0 +1,163 @@
+package com.jortage.poolmgr.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Walks the marker segments at the start of a JPEG, up to the start of the image data. Like
+ * {@link PngSurgeon}, but for JPEG.
+ */
+public class JpegSurgeon implements Closeable {
+
+	public static final class Marker {
+		public static final int TEM = 0x01;
+		public static final int RST0 = 0xD0;
+		public static final int RST7 = 0xD7;
+		public static final int SOI = 0xD8;
+		public static final int EOI = 0xD9;
+		public static final int SOS = 0xDA;
+		public static final int APP0 = 0xE0;
+		public static final int APP1 = 0xE1;
+		/**
+		 * Not a real marker; returned by {@link #readMarker} at the end of the stream.
+		 */
+		public static final int END = -1;
+		/**
+		 * Not a real marker; returned by {@link #readMarker} if there was something other than a
+		 * marker where one should be.
+		 */
+		public static final int GARBAGE = -2;
+	}
+
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	// everything read for the current marker (fill bytes, the marker, its length) but not yet written
+	private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+	private int marker = Marker.END;
+	private int segmentLength = -1;
+
+	public JpegSurgeon(InputStream in, OutputStream out) {
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+	}
+
+	/**
+	 * @return the next marker, {@link Marker#END}, or {@link Marker#GARBAGE}
+	 */
+	public int readMarker() throws IOException {
+		if (head.size() != 0) throw new IllegalStateException("Current segment has not been processed");
+		int b = in.read();
+		if (b == -1) return marker = Marker.END;
+		head.write(b);
+		if (b != 0xFF) return marker = Marker.GARBAGE;
+		// any number of 0xFF fill bytes can come before a marker
+		do {
+			b = in.read();
+			if (b == -1) return marker = Marker.GARBAGE;
+			head.write(b);
+		} while (b == 0xFF);
+		marker = b;
+		if (hasLength(marker)) {
+			int hi = in.read();
+			int lo = in.read();
+			if (hi != -1) head.write(hi);
+			if (lo != -1) head.write(lo);
+			if (lo == -1 || ((hi<<8)|lo) < 2) return marker = Marker.GARBAGE;
+			segmentLength = ((hi<<8)|lo)-2;
+		}
+		return marker;
+	}
+
+	public static boolean hasLength(int marker) {
+		return marker != Marker.TEM && marker != Marker.SOI && marker != Marker.EOI
+				&& !(marker >= Marker.RST0 && marker <= Marker.RST7);
+	}
+
+	/**
+	 * @return the length of the current segment's data, not counting the length field itself
+	 */
+	public int getSegmentLength() {
+		if (segmentLength == -1) throw new IllegalStateException("Data has already been read or segment has no data");
+		return segmentLength;
+	}
+
+	/**
+	 * @return the current segment's data, or null if the file ended partway through it (in which
+	 * 		case what there was has been copied through)
+	 */
+	public byte[] readSegmentData() throws IOException {
+		byte[] data = new byte[getSegmentLength()];
+		int count = in.readNBytes(data, 0, data.length);
+		if (count != data.length) {
+			head.writeTo(out);
+			out.write(data, 0, count);
+			done();
+			return null;
+		}
+		return data;
+	}
+
+	/**
+	 * Copy the current segment through unchanged.
+	 */
+	public void copySegment() throws IOException {
+		checkMarker();
+		head.writeTo(out);
+		if (segmentLength != -1) {
+			ByteStreams.limit(in, segmentLength).transferTo(out);
+		}
+		done();
+	}
+
+	/**
+	 * Write out the current segment with new data, which was previously read with
+	 * {@link #readSegmentData}.
+	 */
+	public void writeSegment(byte[] data) throws IOException {
+		checkMarker();
+		if (segmentLength == -1) throw new IllegalStateException("Segment has no data");
+		if (data.length+2 > 0xFFFF) throw new IllegalArgumentException("Segment too long");
+		// everything but the old length
+		out.write(head.toByteArray(), 0, head.size()-2);
+		out.writeShort(data.length+2);
+		out.write(data);
+		done();
+	}
+
+	/**
+	 * Copy whatever's been read of the current marker and everything after it through unchanged.
+	 * Used once we reach the image data, or something we don't understand.
+	 */
+	public void copyRest() throws IOException {
+		head.writeTo(out);
+		done();
+		in.transferTo(out);
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+		out.close();
+	}
+
+	private void checkMarker() {
+		if (head.size() == 0 || marker < 0) throw new IllegalStateException("No marker has been read");
+	}
+
+	private void done() {
+		head.reset();
+		marker = Marker.END;
+		segmentLength = -1;
+	}
+
+}
@@ -0,0 +1,187 @@
+package com.jortage.poolmgr.util;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Blanks out the "when was this file last saved" fields of EXIF and XMP blocks, in place. Lengths
+ * and offsets never change, so the containing file's structure doesn't need rewriting.
+ * <p>
+ * Only the fields that change every time a file is re-saved are touched. Capture dates
+ * (DateTimeOriginal, xmp:CreateDate and so on) describe the picture, not the file, and survive
+ * re-encoding on their own, so they're left alone.
+ */
+public final class MetadataDates {
+
+	public static final byte[] EXIF_HEADER = "Exif\0\0".getBytes(Charsets.ISO_8859_1);
+	public static final byte[] XMP_HEADER = "http://ns.adobe.com/xap/1.0/\0".getBytes(Charsets.ISO_8859_1);
+
+	private static final int TYPE_ASCII = 2;
+	private static final int TYPE_LONG = 4;
+
+	// IFD0
+	private static final int TAG_DATE_TIME = 0x0132;
+	private static final int TAG_EXIF_IFD = 0x8769;
+	// Exif IFD
+	private static final int TAG_OFFSET_TIME = 0x9010;
+	private static final int TAG_SUB_SEC_TIME = 0x9290;
+
+	private static final byte[][] XMP_PROPERTIES = {
+			"xmp:ModifyDate".getBytes(Charsets.ISO_8859_1),
+			"xmp:MetadataDate".getBytes(Charsets.ISO_8859_1),
+	};
+
+	/**
+	 * Blank the modification date fields in the TIFF-structured EXIF data at
+	 * {@code data[ofs..ofs+len)}. Anything malformed is left as it is.
+	 */
+	public static void blankExif(byte[] data, int ofs, int len) {
+		if (len < 8) return;
+		boolean le;
+		if (data[ofs] == 'I' && data[ofs+1] == 'I') {
+			le = true;
+		} else if (data[ofs] == 'M' && data[ofs+1] == 'M') {
+			le = false;
+		} else {
+			return;
+		}
+		Tiff t = new Tiff(data, ofs, len, le);
+		if (t.u16(2) != 42) return;
+		long ifd0 = t.u32(4);
+		long exifIfd = -1;
+		int count = t.entryCount(ifd0);
+		for (int i = 0; i < count; i++) {
+			int entry = (int)ifd0+2+(i*12);
+			int tag = t.u16(entry);
+			if (tag == TAG_DATE_TIME) {
+				t.blankAscii(entry);
+			} else if (tag == TAG_EXIF_IFD && t.u16(entry+2) == TYPE_LONG) {
+				exifIfd = t.u32(entry+8);
+			}
+		}
+		if (exifIfd != -1 && exifIfd != ifd0) {
+			count = t.entryCount(exifIfd);
+			for (int i = 0; i < count; i++) {
+				int entry = (int)exifIfd+2+(i*12);
+				int tag = t.u16(entry);
+				if (tag == TAG_OFFSET_TIME || tag == TAG_SUB_SEC_TIME) {
+					t.blankAscii(entry);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Blank the modification date properties in the XMP packet at {@code data[ofs..ofs+len)},
+	 * whether they're written as attributes or elements. The values are replaced with spaces,
+	 * which keeps the XML well-formed.
+	 */
+	public static void blankXmp(byte[] data, int ofs, int len) {
+		int end = ofs+len;
+		for (byte[] prop : XMP_PROPERTIES) {
+			int i = ofs;
+			while ((i = indexOf(data, prop, i, end)) != -1) {
+				int after = i+prop.length;
+				if (i > ofs && data[i-1] == '<') {
+					// <xmp:ModifyDate>value</xmp:ModifyDate>
+					if (after < end && data[after] == '>') {
+						for (int j = after+1; j < end && data[j] != '<'; j++) {
+							data[j] = ' ';
+						}
+					}
+				} else if (i == ofs || isXmlSpace(data[i-1])) {
+					// xmp:ModifyDate="value"
+					int j = skipSpace(data, after, end);
+					if (j < end && data[j] == '=') {
+						j = skipSpace(data, j+1, end);
+						if (j < end && (data[j] == '"' || data[j] == '\'')) {
+							byte quote = data[j];
+							for (j++; j < end && data[j] != quote; j++) {
+								data[j] = ' ';
+							}
+						}
+					}
+				}
+				i = after;
+			}
+		}
+	}
+
+	public static boolean startsWith(byte[] data, byte[] prefix) {
+		if (data.length < prefix.length) return false;
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[i] != prefix[i]) return false;
+		}
+		return true;
+	}
+
+	private static int indexOf(byte[] data, byte[] needle, int from, int end) {
+		outer: for (int i = from; i <= end-needle.length; i++) {
+			for (int j = 0; j < needle.length; j++) {
+				if (data[i+j] != needle[j]) continue outer;
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private static int skipSpace(byte[] data, int i, int end) {
+		while (i < end && isXmlSpace(data[i])) i++;
+		return i;
+	}
+
+	private static boolean isXmlSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	private static final class Tiff {
+		private final byte[] data;
+		private final int base, len;
+		private final boolean le;
+
+		private Tiff(byte[] data, int base, int len, boolean le) {
+			this.data = data;
+			this.base = base;
+			this.len = len;
+			this.le = le;
+		}
+
+		private int u8(int pos) {
+			return data[base+pos]&0xFF;
+		}
+
+		private int u16(int pos) {
+			return le ? u8(pos)|(u8(pos+1)<<8) : (u8(pos)<<8)|u8(pos+1);
+		}
+
+		private long u32(int pos) {
+			long lo = u16(le ? pos : pos+2);
+			long hi = u16(le ? pos+2 : pos);
+			return (hi<<16)|lo;
+		}
+
+		/**
+		 * @return the number of entries in the IFD at {@code ifd}, or 0 if it doesn't fit
+		 */
+		private int entryCount(long ifd) {
+			if (ifd < 8 || ifd+2 > len) return 0;
+			int count = u16((int)ifd);
+			if (ifd+2+(count*12L) > len) return 0;
+			return count;
+		}
+
+		private void blankAscii(int entry) {
+			if (u16(entry+2) != TYPE_ASCII) return;
+			long count = u32(entry+4);
+			if (count == 0) return;
+			long pos = count <= 4 ? entry+8 : u32(entry+8);
+			if (pos < 0 || pos+count > len) return;
+			for (int i = 0; i < count-1; i++) {
+				data[base+(int)pos+i] = ' ';
+			}
+			data[base+(int)(pos+count-1)] = 0;
+		}
+	}
+
+	private MetadataDates() {}
+
+}
@@ -1,28 +1,27 @@
 package com.jortage.poolmgr.util;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Locale;
 import java.util.zip.CRC32;
-import java.util.zip.CheckedOutputStream;
 
 import com.google.common.base.Charsets;
-import com.google.common.io.ByteStreams;
 import com.google.common.primitives.Ints;
 
+/**
+ * Walks the chunks of a PNG, after the signature.
+ * <p>
+ * Does its own buffering, and can be {@link #reset} onto another file once closed, so a surgeon
+ * kept around per thread doesn't allocate anything per chunk or per file. Chunk data is read into
+ * caller-supplied buffers.
+ * <p>
+ * Truncated and malformed files aren't errors. Whatever was read of a chunk the file ends partway
+ * through is copied through as it was, and anything that stops looking like chunks is copied
+ * through along with everything after it; either way, the next {@link #readChunkType} returns -1.
+ */
 public class PngSurgeon implements Closeable {
-	
-	public static class CRCException extends IOException {
-		public CRCException(String msg) { super(msg); }
-	}
-	
+
 	public static final class Chunk {
 		public static final int IHDR = fourcc("IHDR");
 		public static final int PLTE = fourcc("PLTE");
@@ -50,100 +49,263 @@ public class PngSurgeon implements Closeable {
 		public static final int fcTL = fourcc("fcTL");
 		public static final int fdAT = fourcc("fdAT");
 	}
-	
+
 	public static final long PNG_MAGIC = 0x89504E470D0A1A0AL;
-	
-	private final DataInputStream in;
-	private final DataOutputStream out, crcOut;
+
+	private static final int BUFFER_SIZE = 8192;
+	private static final byte[] EMPTY = new byte[0];
+
+	private final byte[] inBuf = new byte[BUFFER_SIZE];
+	private final byte[] outBuf = new byte[BUFFER_SIZE];
+	private final byte[] scratch = new byte[8];
 	private final CRC32 crc = new CRC32();
-	
+	private InputStream in;
+	private OutputStream out;
+	private int inPos, inLimit, outPos;
+
 	private int chunkLength = -1;
 	private int chunkType;
-	
-	public PngSurgeon(InputStream in, OutputStream out) throws IOException {
-		this.in = new DataInputStream(new BufferedInputStream(in));
-		OutputStream bout = new BufferedOutputStream(out);
-		this.out = new DataOutputStream(bout);
-		this.crcOut = new DataOutputStream(new CheckedOutputStream(bout, crc));
+	private int lastCrc;
+	private boolean lastCrcValid;
+
+	public PngSurgeon() {}
+
+	public PngSurgeon(InputStream in, OutputStream out) {
+		reset(in, out);
+	}
+
+	/**
+	 * Start working on a new file. Anything the surgeon was doing before is forgotten.
+	 */
+	public PngSurgeon reset(InputStream in, OutputStream out) {
+		return reset(in, out, EMPTY, 0, 0);
 	}
 
+	/**
+	 * Start working on a new file, where {@code prefix[ofs..ofs+len)} was already read from the
+	 * start of {@code in}.
+	 */
+	public PngSurgeon reset(InputStream in, OutputStream out, byte[] prefix, int ofs, int len) {
+		this.in = in;
+		this.out = out;
+		System.arraycopy(prefix, ofs, inBuf, 0, len);
+		inPos = 0;
+		inLimit = len;
+		outPos = 0;
+		chunkLength = -1;
+		return this;
+	}
+
+	/**
+	 * @return the next chunk's type, or -1 if there isn't a whole chunk header left or what's left
+	 * 		isn't a chunk (in which case whatever was left has been copied through)
+	 */
 	public int readChunkType() throws IOException {
 		if (chunkLength != -1) throw new IllegalStateException("Current chunk has not been processed");
-		chunkLength = in.readInt();
-		chunkType = in.readInt();
+		int count = readUpTo(scratch, 0, 8);
+		if (count != 8) {
+			write(scratch, 0, count);
+			return -1;
+		}
+		int len = Ints.fromBytes(scratch[0], scratch[1], scratch[2], scratch[3]);
+		int type = Ints.fromBytes(scratch[4], scratch[5], scratch[6], scratch[7]);
+		if (len < 0 || type == -1) {
+			// lengths are limited to 2^31-1, and we need -1 to mean the end; give up on the rest
+			write(scratch, 0, 8);
+			copyRest();
+			return -1;
+		}
+		chunkType = type;
+		chunkLength = len;
 		return chunkType;
 	}
-	
+
 	public int getChunkLength() {
 		if (chunkLength == -1) throw new IllegalStateException("Data has already been read or no chunk has been read yet");
 		return chunkLength;
 	}
-	
-	public byte[] readChunkData() throws IOException {
-		if (chunkLength == -1) throw new IllegalStateException("Data has already been read or no chunk has been read yet");
-		byte[] data = new byte[chunkLength];
+
+	/**
+	 * Read the current chunk's data into {@code buf} and check its CRC. A bad CRC isn't an error
+	 * (corrupt files are everywhere, and exceptions aren't free); check {@link #isLastCrcValid}.
+	 * @return the length of the data, or -1 if the file ended partway through the chunk (in which
+	 * 		case what there was has been copied through)
+	 */
+	public int readChunkData(byte[] buf) throws IOException {
+		int len = getChunkLength();
+		if (buf.length < len) throw new IllegalArgumentException("Buffer too small ("+buf.length+" < "+len+")");
 		chunkLength = -1;
-		in.readFully(data);
-		crc.reset();
-		crc.update(Ints.toByteArray(chunkType));
-		crc.update(data);
-		int actual = in.readInt();
-		int expected = (int)crc.getValue();
-		if (actual != expected) {
-			throw new CRCException("Bad CRC ("+toHexString(actual)+" != "+toHexString(expected)+")");
+		int count = readUpTo(buf, 0, len);
+		int crcCount = count == len ? readUpTo(scratch, 0, 4) : 0;
+		if (crcCount != 4) {
+			writeInt(len);
+			writeInt(chunkType);
+			write(buf, 0, count);
+			write(scratch, 0, crcCount);
+			lastCrcValid = false;
+			return -1;
 		}
-		return data;
+		crc.reset();
+		updateCrc(chunkType);
+		crc.update(buf, 0, len);
+		lastCrc = Ints.fromByteArray(scratch);
+		lastCrcValid = lastCrc == (int)crc.getValue();
+		return len;
 	}
 
+	/**
+	 * Drop the current chunk, header and all. If the file ends partway through it, there's just
+	 * less to drop.
+	 */
 	public void skipChunkData() throws IOException {
-		if (chunkLength == -1) throw new IllegalStateException("Data has already been read or no chunk has been read yet");
-		in.skipBytes(chunkLength+4);
+		long remaining = getChunkLength()+4L;
 		chunkLength = -1;
+		while (remaining > 0) {
+			if (inPos == inLimit && !fill()) return;
+			int n = (int)Math.min(remaining, inLimit-inPos);
+			inPos += n;
+			remaining -= n;
+		}
 	}
-	
+
+	/**
+	 * Copy the current chunk through unchanged, CRC and all. The CRC isn't checked; a chunk
+	 * that's passed through as it is can't be made any worse by us.
+	 */
 	public void copyChunk() throws IOException {
-		if (chunkLength == -1) throw new IllegalStateException("Data has already been read or no chunk has been read yet");
-		out.writeInt(chunkLength);
-		out.writeInt(chunkType);
-		ByteStreams.limit(in, chunkLength+4).transferTo(out);
+		int len = getChunkLength();
 		chunkLength = -1;
+		writeInt(len);
+		writeInt(chunkType);
+		long remaining = len+4L;
+		while (remaining > 0) {
+			if (inPos == inLimit && !fill()) return;
+			int n = (int)Math.min(remaining, inLimit-inPos);
+			write(inBuf, inPos, n);
+			inPos += n;
+			remaining -= n;
+		}
 	}
-	
-	public void writeChunk(int chunkType, byte[] data) throws IOException {
-		out.writeInt(data.length);
-		crc.reset();
-		crcOut.writeInt(chunkType);
-		crcOut.write(data);
-		out.writeInt((int)crc.getValue());
+
+	/**
+	 * @return whether the chunk most recently read with {@link #readChunkData} had a good CRC
+	 */
+	public boolean isLastCrcValid() {
+		return lastCrcValid;
 	}
-	
-	public void writeChunk(int chunkType, ByteArrayOutputStream data) throws IOException {
-		out.writeInt(data.size());
+
+	/**
+	 * @return the CRC the file had for the chunk most recently read with {@link #readChunkData},
+	 * 		right or not
+	 */
+	public int getLastCrc() {
+		return lastCrc;
+	}
+
+	public void writeChunk(int chunkType, byte[] data, int ofs, int len) throws IOException {
 		crc.reset();
-		crcOut.writeInt(chunkType);
-		data.writeTo(crcOut);
-		out.writeInt((int)crc.getValue());
+		updateCrc(chunkType);
+		crc.update(data, ofs, len);
+		writeChunk(chunkType, data, ofs, len, (int)crc.getValue());
 	}
-	
+
+	/**
+	 * Write a chunk with the given CRC rather than a computed one, e.g. to pass through a chunk
+	 * with a bad CRC unchanged.
+	 */
+	public void writeChunk(int chunkType, byte[] data, int ofs, int len, int crc) throws IOException {
+		writeInt(len);
+		writeInt(chunkType);
+		write(data, ofs, len);
+		writeInt(crc);
+	}
+
 	public void writeEmptyChunk(int chunkType) throws IOException {
-		out.writeInt(0);
-		crc.reset();
-		crcOut.writeInt(chunkType);
-		out.writeInt((int)crc.getValue());
+		writeChunk(chunkType, EMPTY, 0, 0);
 	}
-	
+
 	@Override
 	public void close() throws IOException {
-		in.close();
-		out.close();
+		try {
+			flush();
+		} finally {
+			try {
+				in.close();
+			} finally {
+				out.close();
+				in = null;
+				out = null;
+			}
+		}
+	}
+
+	private boolean fill() throws IOException {
+		int n = in.read(inBuf, 0, inBuf.length);
+		if (n <= 0) return false;
+		inPos = 0;
+		inLimit = n;
+		return true;
+	}
+
+	/**
+	 * @return how much was read; less than {@code len} only at the end of the file
+	 */
+	private int readUpTo(byte[] buf, int ofs, int len) throws IOException {
+		int read = 0;
+		while (read < len) {
+			if (inPos == inLimit && !fill()) break;
+			int n = Math.min(len-read, inLimit-inPos);
+			System.arraycopy(inBuf, inPos, buf, ofs+read, n);
+			inPos += n;
+			read += n;
+		}
+		return read;
+	}
+
+	private void copyRest() throws IOException {
+		write(inBuf, inPos, inLimit-inPos);
+		inPos = inLimit;
+		flush();
+		in.transferTo(out);
+	}
+
+	private void writeInt(int i) throws IOException {
+		if (outBuf.length-outPos < 4) flush();
+		outBuf[outPos++] = (byte)(i>>>24);
+		outBuf[outPos++] = (byte)(i>>>16);
+		outBuf[outPos++] = (byte)(i>>>8);
+		outBuf[outPos++] = (byte)i;
+	}
+
+	private void write(byte[] buf, int ofs, int len) throws IOException {
+		if (len > outBuf.length-outPos) {
+			flush();
+			if (len >= outBuf.length) {
+				// big enough that buffering it would just be an extra copy
+				out.write(buf, ofs, len);
+				return;
+			}
+		}
+		System.arraycopy(buf, ofs, outBuf, outPos, len);
+		outPos += len;
+	}
+
+	private void flush() throws IOException {
+		if (outPos > 0) {
+			out.write(outBuf, 0, outPos);
+			outPos = 0;
+		}
+	}
+
+	private void updateCrc(int i) {
+		crc.update(i>>>24);
+		crc.update(i>>>16);
+		crc.update(i>>>8);
+		crc.update(i);
 	}
 
 	private static int fourcc(String str) {
 		return Ints.fromByteArray(str.getBytes(Charsets.ISO_8859_1));
 	}
 
-	private static String toHexString(int i) {
-		return Long.toHexString(((i)&0xFFFFFFFFL)|0xF00000000L).substring(1).toUpperCase(Locale.ROOT);
-	}
-	
 }
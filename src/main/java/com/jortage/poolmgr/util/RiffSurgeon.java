@@ -0,0 +1,131 @@
+package com.jortage.poolmgr.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
+
+/**
+ * Walks the chunks of a RIFF file (e.g. WebP), after the 12-byte RIFF header. Like
+ * {@link PngSurgeon}, but RIFF is little-endian and has no checksums.
+ */
+public class RiffSurgeon implements Closeable {
+
+	public static final class Chunk {
+		public static final int VP8X = fourcc("VP8X");
+		public static final int EXIF = fourcc("EXIF");
+		public static final int XMP = fourcc("XMP ");
+	}
+
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	private long chunkLength = -1;
+	private int chunkType;
+	// the file ended right where the last chunk read's pad byte should have been
+	private boolean padMissing;
+
+	public RiffSurgeon(InputStream in, OutputStream out) {
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		this.out = new DataOutputStream(new BufferedOutputStream(out));
+	}
+
+	/**
+	 * @return the next chunk's type, or -1 if there isn't a whole chunk header left or what's left
+	 * 		isn't a chunk (in which case whatever was left has been copied through)
+	 */
+	public int readChunkType() throws IOException {
+		if (chunkLength != -1) throw new IllegalStateException("Current chunk has not been processed");
+		byte[] header = new byte[8];
+		int count = in.readNBytes(header, 0, 8);
+		if (count != 8) {
+			out.write(header, 0, count);
+			return -1;
+		}
+		chunkType = Ints.fromBytes(header[0], header[1], header[2], header[3]);
+		if (chunkType == -1) {
+			// can't be a real chunk, and we need -1 to mean the end; give up on the rest
+			out.write(header);
+			in.transferTo(out);
+			return -1;
+		}
+		chunkLength = Integer.toUnsignedLong(Ints.fromBytes(header[7], header[6], header[5], header[4]));
+		return chunkType;
+	}
+
+	/**
+	 * @return the length of the current chunk's data, not counting the pad byte
+	 */
+	public long getChunkLength() {
+		if (chunkLength == -1) throw new IllegalStateException("Data has already been read or no chunk has been read yet");
+		return chunkLength;
+	}
+
+	/**
+	 * @return the current chunk's data, or null if the file ended partway through it (in which
+	 * 		case what there was has been copied through)
+	 */
+	public byte[] readChunkData() throws IOException {
+		if (chunkLength == -1) throw new IllegalStateException("Data has already been read or no chunk has been read yet");
+		if (chunkLength > Integer.MAX_VALUE-8) throw new IllegalStateException("Chunk too big to read");
+		byte[] data = new byte[(int)chunkLength];
+		int count = in.readNBytes(data, 0, data.length);
+		if (count != data.length) {
+			writeHeader(chunkType, chunkLength);
+			out.write(data, 0, count);
+			chunkLength = -1;
+			return null;
+		}
+		chunkLength = -1;
+		if ((data.length & 1) != 0) {
+			// pad byte; if it's missing, the file ends here, and it shouldn't grow one when it's written back
+			padMissing = in.read() == -1;
+		}
+		return data;
+	}
+
+	/**
+	 * Copy the current chunk through unchanged.
+	 */
+	public void copyChunk() throws IOException {
+		if (chunkLength == -1) throw new IllegalStateException("Data has already been read or no chunk has been read yet");
+		writeHeader(chunkType, chunkLength);
+		ByteStreams.limit(in, chunkLength+(chunkLength & 1)).transferTo(out);
+		chunkLength = -1;
+	}
+
+	/**
+	 * Write out a chunk, e.g. one read with {@link #readChunkData} and modified. If that was the
+	 * last thing in a file missing its final pad byte, it's written without one.
+	 */
+	public void writeChunk(int chunkType, byte[] data) throws IOException {
+		writeHeader(chunkType, data.length);
+		out.write(data);
+		if ((data.length & 1) != 0 && !padMissing) out.write(0);
+		padMissing = false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+		out.close();
+	}
+
+	private void writeHeader(int chunkType, long length) throws IOException {
+		out.writeInt(chunkType);
+		out.writeInt(Integer.reverseBytes((int)length));
+	}
+
+	private static int fourcc(String str) {
+		return Ints.fromByteArray(str.getBytes(Charsets.ISO_8859_1));
+	}
+
+}
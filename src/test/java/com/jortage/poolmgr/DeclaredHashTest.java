@@ -0,0 +1,169 @@
+package com.jortage.poolmgr;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.sql.DataSource;
+
+import org.jclouds.ContextBuilder;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import com.jortage.poolmgr.util.PngSurgeon;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+/**
+ * Puts a PNG that the normalizer changes (a tIME chunk, and junk after IEND that it never
+ * reads, then closes its input) with a declared hash, through both the temp file and streaming
+ * paths.
+ * <p>
+ * There's no database here; a put that gets past the hash check stores the blob in the
+ * (in-memory) backend and then fails on the {@link DataSource}, which is how we tell it
+ * apart from one that was rejected.
+ */
+public class DeclaredHashTest {
+
+	private static final String NO_DATABASE = "no database in tests";
+
+	private BlobStoreContext context;
+	private BlobStore backend;
+	private JortageBlobStore store;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		// every test gets a fresh backend, but the cache of what's in it is global
+		KnownBlobs.invalidate(normalizedHash(png()));
+		context = ContextBuilder.newBuilder("transient").credentials("test", "test").buildView(BlobStoreContext.class);
+		backend = context.getBlobStore();
+		backend.createContainerInLocation(null, "pool");
+		DataSource noDatabase = (DataSource)Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class<?>[] { DataSource.class }, (proxy, method, args) -> {
+			throw new SQLException(NO_DATABASE);
+		});
+		store = new JortageBlobStore(backend, backend, "pool", "test", noDatabase);
+	}
+
+	@AfterEach
+	public void tearDown() {
+		Poolmgr.streamingUploads = false;
+		context.close();
+	}
+
+	@ParameterizedTest
+	@ValueSource(booleans = { false, true })
+	public void rawHashIsAccepted(boolean streaming) throws IOException {
+		Poolmgr.streamingUploads = streaming;
+		byte[] png = png();
+		HashCode normalized = normalizedHash(png);
+		assertStored(png, Hashing.sha512().hashBytes(png), normalized);
+	}
+
+	@ParameterizedTest
+	@ValueSource(booleans = { false, true })
+	public void normalizedHashIsAccepted(boolean streaming) throws IOException {
+		Poolmgr.streamingUploads = streaming;
+		byte[] png = png();
+		HashCode normalized = normalizedHash(png);
+		assertStored(png, normalized, normalized);
+	}
+
+	@ParameterizedTest
+	@ValueSource(booleans = { false, true })
+	public void wrongHashIsRejected(boolean streaming) throws IOException {
+		Poolmgr.streamingUploads = streaming;
+		byte[] png = png();
+		byte[] other = png.clone();
+		other[other.length-1] ^= 1;
+		IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+				() -> store.putBlob("test", blob(png, Hashing.sha512().hashBytes(other))));
+		assertTrue(e.getMessage().contains("did not match declared hash"), e.getMessage());
+	}
+
+	private void assertStored(byte[] png, HashCode declared, HashCode normalized) {
+		RuntimeException e = assertThrows(RuntimeException.class, () -> store.putBlob("test", blob(png, declared)));
+		assertTrue(e.getCause() instanceof SQLException && NO_DATABASE.equals(e.getCause().getMessage()),
+				"expected to get as far as the database, got "+e);
+		assertTrue(backend.blobExists("pool", Poolmgr.hashToPath(normalized.toString())), "blob wasn't stored under its normalized hash");
+	}
+
+	private Blob blob(byte[] data, HashCode declared) {
+		// like a request body, and unlike a ByteArrayInputStream, it can't be read once it's closed
+		InputStream body = new FilterInputStream(new ByteArrayInputStream(data)) {
+			private boolean closed;
+
+			@Override
+			public int read() throws IOException {
+				if (closed) throw new IOException("Stream closed");
+				return super.read();
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (closed) throw new IOException("Stream closed");
+				return super.read(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				closed = true;
+				super.close();
+			}
+		};
+		return store.blobBuilder("image.png")
+				.payload(body)
+				.contentLength(data.length)
+				.contentType("image/png")
+				.userMetadata(Map.of("jortage-hash", declared.toString()))
+				.build();
+	}
+
+	private static HashCode normalizedHash(byte[] data) throws IOException {
+		HashCode hash = FileReprocessor.reprocessAndHash(new ByteArrayInputStream(data), new ByteArrayOutputStream());
+		assertEquals(false, hash.equals(Hashing.sha512().hashBytes(data)), "normalizer didn't change the test file");
+		return hash;
+	}
+
+	private static byte[] png() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		out.writeLong(PngSurgeon.PNG_MAGIC);
+		chunk(out, "IHDR", new byte[] { 0, 0, 0, 1, 0, 0, 0, 1, 8, 0, 0, 0, 0 });
+		chunk(out, "tIME", new byte[] { 0x07, (byte)0xE7, 5, 17, 12, 34, 56 });
+		// bigger than any buffer on the way, so the junk after IEND hasn't been read by the time it's reached
+		chunk(out, "IDAT", new byte[65536]);
+		chunk(out, "IEND", new byte[0]);
+		out.write("some junk a tool left after the end".getBytes(Charsets.ISO_8859_1));
+		return baos.toByteArray();
+	}
+
+	private static void chunk(DataOutputStream out, String type, byte[] data) throws IOException {
+		byte[] typeBytes = type.getBytes(Charsets.ISO_8859_1);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data);
+		out.writeInt(data.length);
+		out.write(typeBytes);
+		out.write(data);
+		out.writeInt((int)crc.getValue());
+	}
+
+}
@@ -0,0 +1,87 @@
+package com.jortage.poolmgr.normalizer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+
+import com.jortage.poolmgr.FileReprocessor;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Runs every {@code golden/<format>/<name>.in} through {@link FileReprocessor} and checks it
+ * comes out as {@code <name>.out}, byte for byte. Truncated and malformed inputs are expected
+ * to be passed through as they are from wherever the normalizer stopped understanding them.
+ * <p>
+ * Output is also run through a second time, since a normalized file that normalizes to
+ * something else would never dedupe against itself. PNG is the exception: kept tEXt entries
+ * come out the way the original normalizer wrote them, stale padding and all, so the pool keeps
+ * deduplicating against what's already in it, and that padding gets padded again.
+ */
+public class NormalizerGoldenTest {
+
+	@TestFactory
+	public Stream<DynamicTest> png() throws IOException {
+		return golden("png", false);
+	}
+
+	@TestFactory
+	public Stream<DynamicTest> jpeg() throws IOException {
+		return golden("jpeg", true);
+	}
+
+	@TestFactory
+	public Stream<DynamicTest> webp() throws IOException {
+		return golden("webp", true);
+	}
+
+	private Stream<DynamicTest> golden(String format, boolean idempotent) throws IOException {
+		Path dir;
+		try {
+			dir = Paths.get(getClass().getResource("golden/"+format).toURI());
+		} catch (URISyntaxException e) {
+			throw new AssertionError(e);
+		}
+		List<Path> inputs;
+		try (Stream<Path> files = Files.list(dir)) {
+			inputs = files.filter(p -> p.toString().endsWith(".in")).sorted().collect(Collectors.toList());
+		}
+		assertFalse(inputs.isEmpty(), "no golden files for "+format);
+		return inputs.stream().map(in -> {
+			String name = in.getFileName().toString();
+			name = name.substring(0, name.length()-3);
+			Path out = in.resolveSibling(name+".out");
+			return DynamicTest.dynamicTest(name, () -> {
+				byte[] expected = Files.readAllBytes(out);
+				assertArrayEquals(expected, reprocess(Files.readAllBytes(in)), "first pass");
+				if (idempotent) {
+					assertArrayEquals(expected, reprocess(expected), "second pass");
+				}
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				assertEquals(Hashing.sha512().hashBytes(expected),
+						FileReprocessor.reprocessAndHash(new ByteArrayInputStream(Files.readAllBytes(in)), baos), "hash");
+			});
+		});
+	}
+
+	private static byte[] reprocess(byte[] data) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		FileReprocessor.reprocess(new ByteArrayInputStream(data), baos);
+		return baos.toByteArray();
+	}
+
+}